@@ -0,0 +1,155 @@
+package org.jgroups.common;
+
+import org.jgroups.upgrade_server.Address;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded, bidirectional cache of conversions between JGroups addresses (of type A) and protobuf addresses. A
+ * conversion in one direction also adds the reverse conversion. When the cache is full, a conversion which has not
+ * been used since the clock hand last passed it is evicted (CLOCK algorithm), so that addresses changing between
+ * views are still cached. {@link #retainAll(Collection)} removes the conversions of members which left.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class AddressCache<A> {
+    protected final Cache<A,Address> to_protobuf=new Cache<>();
+    protected final Cache<Address,A> from_protobuf=new Cache<>();
+    protected int                    max_size;
+    protected final LongAdder        hits=new LongAdder(), misses=new LongAdder(), evictions=new LongAdder();
+
+    public AddressCache(int max_size) {
+        this.max_size=max_size;
+    }
+
+    public int             maxSize()          {return max_size;}
+    public AddressCache<A> maxSize(int s)     {this.max_size=s; return this;}
+    public int             size()             {return to_protobuf.map.size();}
+    public long            hits()             {return hits.sum();}
+    public long            misses()           {return misses.sum();}
+    public long            evictions()        {return evictions.sum();}
+    public AddressCache<A> resetStats()       {hits.reset(); misses.reset(); evictions.reset(); return this;}
+
+    /** Returns the protobuf address for addr, calling converter (and caching the result) on a miss */
+    public Address toProtobuf(A addr, Function<A,Address> converter) {
+        if(addr == null)
+            return converter.apply(null);
+        Address retval=to_protobuf.get(addr);
+        if(retval != null) {
+            hits.increment();
+            return retval;
+        }
+        misses.increment();
+        retval=converter.apply(addr);
+        add(addr, retval);
+        return retval;
+    }
+
+    /** Returns the JGroups address for addr, calling converter (and caching the result) on a miss */
+    public A fromProtobuf(Address addr, Function<Address,A> converter) {
+        if(addr == null)
+            return converter.apply(null);
+        A retval=from_protobuf.get(addr);
+        if(retval != null) {
+            hits.increment();
+            return retval;
+        }
+        misses.increment();
+        retval=converter.apply(addr);
+        if(retval != null)
+            add(retval, addr);
+        return retval;
+    }
+
+    /** Removes all conversions of JGroups addresses which are not in addrs, e.g. the members of a new view */
+    public AddressCache<A> retainAll(Collection<A> addrs) {
+        Set<A> set=addrs instanceof Set? (Set<A>)addrs : new HashSet<>(addrs);
+        to_protobuf.map.keySet().retainAll(set);
+        from_protobuf.map.values().removeIf(e -> !set.contains(e.val));
+        return this;
+    }
+
+    public AddressCache<A> clear() {
+        to_protobuf.map.clear();
+        from_protobuf.map.clear();
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d (hits: %,d, misses: %,d, evictions: %,d)",
+                             size(), max_size, hits(), misses(), evictions());
+    }
+
+    protected void add(A addr, Address pbuf_addr) {
+        if(max_size <= 0)
+            return;
+        if(to_protobuf.put(addr, pbuf_addr, max_size))
+            evictions.increment();
+        if(from_protobuf.put(pbuf_addr, addr, max_size))
+            evictions.increment();
+    }
+
+    /** One direction of the cache */
+    protected static class Cache<K,V> {
+        protected final Map<K,Entry<V>>           map=new ConcurrentHashMap<>();
+        protected Iterator<Map.Entry<K,Entry<V>>> hand; // guarded by this
+
+        protected V get(K key) {
+            Entry<V> e=map.get(key);
+            if(e == null)
+                return null;
+            if(!e.used) // avoids a write on every hit
+                e.used=true;
+            return e.val;
+        }
+
+        /**
+         * Adds a conversion; if max_size has been reached, another one is evicted first
+         * @return True if a conversion was evicted
+         */
+        protected boolean put(K key, V val, int max_size) {
+            boolean evicted=map.size() >= max_size && evict();
+            map.putIfAbsent(key, new Entry<>(val));
+            return evicted;
+        }
+
+        /**
+         * Advances the clock hand to the first conversion which has not been used since the hand last passed it, and
+         * removes it. The used flags of the conversions passed on the way are cleared, so this takes at most 2 rounds
+         */
+        protected synchronized boolean evict() {
+            for(int i=0, max=map.size() * 2 + 1; i < max; i++) {
+                if(hand == null || !hand.hasNext()) {
+                    hand=map.entrySet().iterator();
+                    if(!hand.hasNext())
+                        return false;
+                }
+                Entry<V> e=hand.next().getValue();
+                if(e.used)
+                    e.used=false;
+                else {
+                    hand.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    protected static class Entry<V> {
+        protected final V          val;
+        protected volatile boolean used; // set on a hit, cleared by the clock hand
+
+        protected Entry(V val) {
+            this.val=val;
+        }
+    }
+}
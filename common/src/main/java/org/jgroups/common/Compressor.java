@@ -0,0 +1,237 @@
+package org.jgroups.common;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.jgroups.upgrade_server.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses message payloads ({@link Features#COMPRESSION}) with {@link Deflater} and
+ * {@link Inflater}. Only payloads of at least threshold bytes are compressed, and only if the result is smaller;
+ * a compressed message has the size of the original payload in uncompressed_size.
+ * <br/>
+ * An optional dictionary (e.g. created by {@link DictionaryTrainer} from captured payloads) improves the compression
+ * of small, similar payloads. Senders and receivers (including the UpgradeServer, which decompresses payloads for
+ * members which don't support compression) need to use the same dictionary. Note that the dictionary is processed
+ * for every compressed payload, so large dictionaries increase the cost of compression.
+ * <br/>
+ * Deflaters (with their output buffers) and inflaters are pooled, so that this class can be used by multiple threads
+ * concurrently, and compressing a payload only allocates the compressed payload.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class Compressor {
+    protected int                   threshold;  // min size of a payload to be compressed, 0: no compression
+    protected int                   level=Deflater.BEST_SPEED;
+    protected byte[]                dictionary;
+    protected final Queue<PooledDeflater> deflaters=new ConcurrentLinkedQueue<>();
+    protected final Queue<Inflater> inflaters=new ConcurrentLinkedQueue<>();
+    protected final LongAdder       compressed=new LongAdder(), not_compressed=new LongAdder(); // not smaller
+    protected final LongAdder       bytes_in=new LongAdder(), bytes_out=new LongAdder(); // of compressed payloads
+    protected final LongAdder       compress_time=new LongAdder(); // ns, including payloads which were not smaller
+    protected final LongAdder       decompressed=new LongAdder(), decompress_time=new LongAdder();
+    protected static final int      BUF_SIZE=8192; // size of the output buffer of a pooled deflater
+
+    public int        threshold()              {return threshold;}
+    public Compressor threshold(int t)         {threshold=t; return this;}
+    public int        level()                  {return level;}
+    public Compressor level(int l)             {level=l; return this;}
+    public byte[]     dictionary()             {return dictionary;}
+    public Compressor dictionary(byte[] d)     {dictionary=d; return this;}
+    public long       compressed()             {return compressed.sum();}
+    public long       notCompressed()          {return not_compressed.sum();}
+    public long       decompressed()           {return decompressed.sum();}
+
+    /** The size of the compressed payloads divided by their original size */
+    public double ratio() {
+        long in=bytes_in.sum();
+        return in == 0? 0 : bytes_out.sum() / (double)in;
+    }
+
+    /** The average time (in microseconds) to compress a payload */
+    public double avgCompressTime() {
+        long num=compressed.sum() + not_compressed.sum();
+        return num == 0? 0 : compress_time.sum() / (double)num / 1000.0;
+    }
+
+    /** The average time (in microseconds) to decompress a payload */
+    public double avgDecompressTime() {
+        long num=decompressed.sum();
+        return num == 0? 0 : decompress_time.sum() / (double)num / 1000.0;
+    }
+
+    public Compressor resetStats() {
+        for(LongAdder a: new LongAdder[]{compressed, not_compressed, bytes_in, bytes_out, compress_time,
+          decompressed, decompress_time})
+            a.reset();
+        return this;
+    }
+
+    /** Releases the (native) resources of the pooled deflaters and inflaters */
+    public void close() {
+        PooledDeflater d;
+        while((d=deflaters.poll()) != null)
+            d.deflater.end();
+        Inflater i;
+        while((i=inflaters.poll()) != null)
+            i.end();
+    }
+
+    /** Returns the message with a compressed payload, or the message itself if the payload is not compressed */
+    public Message compress(Message msg) {
+        ByteString payload=msg.getPayload();
+        if(threshold <= 0 || payload.size() < threshold || msg.getUncompressedSize() > 0)
+            return msg;
+        ByteString c=compress(payload);
+        return c != null? msg.toBuilder().setPayload(c).setUncompressedSize(payload.size()).build() : msg;
+    }
+
+    /** Returns the message with a decompressed payload, or the message itself if its payload is not compressed */
+    public Message decompress(Message msg) throws DataFormatException {
+        if(msg.getUncompressedSize() <= 0)
+            return msg;
+        ByteString payload=decompress(msg.getPayload(), msg.getUncompressedSize());
+        return msg.toBuilder().setPayload(payload).clearUncompressedSize().build();
+    }
+
+    /**
+     * Compresses a payload; returns null if the compressed payload would not be smaller. The payload is compressed
+     * into the output buffer of the deflater; if it doesn't fit, the chunks are collected in a {@link ByteString.Output}
+     */
+    public ByteString compress(ByteString payload) {
+        ByteArray in=Utils.toByteArray(payload);
+        long start=System.nanoTime();
+        PooledDeflater pd=deflater();
+        Deflater d=pd.deflater;
+        byte[] buf=pd.buf;
+        try {
+            d.setInput(in.getArray(), in.getOffset(), in.getLength());
+            d.finish();
+            int len=d.deflate(buf);
+            ByteString out=null;
+            if(d.finished()) {
+                if(len < in.getLength())
+                    out=ByteString.copyFrom(buf, 0, len);
+            }
+            else {
+                ByteString.Output output=ByteString.newOutput(BUF_SIZE * 2);
+                output.write(buf, 0, len);
+                while(!d.finished() && output.size() < in.getLength())
+                    output.write(buf, 0, d.deflate(buf));
+                if(d.finished() && output.size() < in.getLength())
+                    out=output.toByteString();
+            }
+            if(out == null) {
+                not_compressed.increment();
+                return null;
+            }
+            compressed.increment();
+            bytes_in.add(in.getLength());
+            bytes_out.add(out.size());
+            return out;
+        }
+        finally {
+            d.reset();
+            deflaters.offer(pd);
+            compress_time.add(System.nanoTime() - start);
+        }
+    }
+
+    /** Decompresses a payload, whose original size was size */
+    public ByteString decompress(ByteString payload, int size) throws DataFormatException {
+        ByteArray in=Utils.toByteArray(payload);
+        long start=System.nanoTime();
+        Inflater inflater=inflater();
+        try {
+            inflater.setInput(in.getArray(), in.getOffset(), in.getLength());
+            byte[] out=new byte[size];
+            int n=0;
+            while(n < size && !inflater.finished()) {
+                int num=inflater.inflate(out, n, size - n);
+                if(num == 0) {
+                    if(!inflater.needsDictionary())
+                        break;
+                    setDictionary(inflater);
+                }
+                n+=num;
+            }
+            if(n != size)
+                throw new DataFormatException(String.format("expected %d bytes, but decompressed %d", size, n));
+            decompressed.increment();
+            return UnsafeByteOperations.unsafeWrap(out);
+        }
+        finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+            decompress_time.add(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed: %,d (not smaller: %,d), ratio: %.2f, avg time: %.2f us, " +
+                               "decompressed: %,d, avg time: %.2f us",
+                             compressed(), notCompressed(), ratio(), avgCompressTime(), decompressed(),
+                             avgDecompressTime());
+    }
+
+    /** Reads a dictionary from a file, URL or resource */
+    public static byte[] readDictionary(String name) throws IOException {
+        try(InputStream in=Utils.getFile(name)) {
+            if(in == null)
+                throw new FileNotFoundException(String.format("dictionary %s not found", name));
+            ByteArrayOutputStream out=new ByteArrayOutputStream(32 * 1024);
+            byte[] buf=new byte[8192];
+            for(int n; (n=in.read(buf)) > 0;)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    protected PooledDeflater deflater() {
+        PooledDeflater d=deflaters.poll();
+        if(d == null)
+            d=new PooledDeflater(new Deflater(level));
+        else
+            d.deflater.setLevel(level);
+        if(dictionary != null)
+            d.deflater.setDictionary(dictionary);
+        return d;
+    }
+
+    protected Inflater inflater() {
+        Inflater i=inflaters.poll();
+        return i != null? i : new Inflater();
+    }
+
+    protected void setDictionary(Inflater inflater) throws DataFormatException {
+        if(dictionary == null)
+            throw new DataFormatException("payload was compressed with a dictionary, but no dictionary is configured");
+        try {
+            inflater.setDictionary(dictionary);
+        }
+        catch(IllegalArgumentException e) {
+            throw new DataFormatException(String.format("payload was compressed with a different dictionary (%s)", e));
+        }
+    }
+
+    /** A deflater and its output buffer */
+    protected static class PooledDeflater {
+        protected final Deflater deflater;
+        protected final byte[]   buf=new byte[BUF_SIZE];
+
+        protected PooledDeflater(Deflater deflater) {
+            this.deflater=deflater;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.jgroups.common;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers messages received from the UpgradeServer on a thread pool, with the same semantics as the JGroups
+ * transport: regular messages from the same sender are delivered one at a time and in the order in which they were
+ * received, while messages from different senders and OOB (and INTERNAL) messages are delivered in parallel. A slow
+ * receiver therefore only delays subsequent messages from the same sender.
+ * <br/>
+ * The pool uses virtual threads if enabled and available (Java 21+), or a pool of up to max_threads platform threads.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class DeliveryPool {
+    protected final int                       max_threads;
+    protected final boolean                   use_virtual_threads;
+    protected volatile ExecutorService        pool;
+    protected final Map<Object,SenderQueue>   senders=new ConcurrentHashMap<>();
+    protected final AtomicInteger             queued=new AtomicInteger(); // messages waiting for or in delivery
+    protected static final Logger             log=Logger.getLogger(DeliveryPool.class.getSimpleName());
+
+    public DeliveryPool(int max_threads, boolean use_virtual_threads) {
+        this.max_threads=max_threads;
+        this.use_virtual_threads=use_virtual_threads;
+    }
+
+    /** The number of messages which have not yet been delivered */
+    public int     size()              {return queued.get();}
+    public int     numSenders()        {return senders.size();}
+    public boolean isVirtual()         {return pool != null && !(pool instanceof ThreadPoolExecutor);}
+
+    public synchronized DeliveryPool start() {
+        if(pool != null)
+            return this;
+        if(use_virtual_threads && (pool=createVirtualThreadPool()) == null)
+            log.warning("virtual threads are not available; using platform threads");
+        if(pool == null) {
+            AtomicInteger num=new AtomicInteger();
+            ThreadPoolExecutor p=new ThreadPoolExecutor(max_threads, max_threads, 30, TimeUnit.SECONDS,
+                                                        new LinkedBlockingQueue<>(), r -> {
+                Thread t=new Thread(r, "delivery-" + num.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            p.allowCoreThreadTimeOut(true);
+            pool=p;
+        }
+        return this;
+    }
+
+    public synchronized DeliveryPool stop() {
+        if(pool != null) {
+            pool.shutdownNow();
+            pool=null;
+        }
+        senders.clear();
+        queued.set(0);
+        return this;
+    }
+
+    /**
+     * Delivers one or more messages
+     * @param sender The identity of the sender (see {@link Utils#key(org.jgroups.upgrade_server.Address)})
+     * @param oob True if the messages are OOB: they are delivered immediately, without ordering
+     * @param num_msgs The number of messages delivered by task
+     * @param task Delivers the messages
+     */
+    public void deliver(Object sender, boolean oob, int num_msgs, Runnable task) {
+        queued.addAndGet(num_msgs);
+        Runnable r=() -> {
+            try {
+                task.run();
+            }
+            catch(Throwable t) {
+                log.log(Level.WARNING, String.format("failed delivering message(s) from %s", sender), t);
+            }
+            finally {
+                queued.addAndGet(-num_msgs);
+            }
+        };
+        if(oob)
+            execute(r);
+        else
+            senders.computeIfAbsent(sender, s -> new SenderQueue()).add(r);
+    }
+
+    /** Removes the idle queues of the senders matching the predicate, e.g. of members which left */
+    public void removeSenders(Predicate<Object> predicate) {
+        senders.entrySet().removeIf(e -> e.getValue().size.get() == 0 && predicate.test(e.getKey()));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d queued, %d senders (%s)", size(), numSenders(),
+                             isVirtual()? "virtual threads" : "max threads: " + max_threads);
+    }
+
+    protected void execute(Runnable r) {
+        ExecutorService p=pool;
+        if(p == null)
+            return; // stopped
+        try {
+            p.execute(r);
+        }
+        catch(RejectedExecutionException ignored) { // stopped concurrently
+        }
+    }
+
+    protected static ExecutorService createVirtualThreadPool() {
+        try {
+            Method m=Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+
+    /** The tasks of a sender; run by at most one thread at a time */
+    protected class SenderQueue implements Runnable {
+        protected final Queue<Runnable> tasks=new ConcurrentLinkedQueue<>();
+        // the thread which increments this from 0 to 1 submits the queue to the pool
+        protected final AtomicInteger   size=new AtomicInteger();
+
+        protected void add(Runnable task) {
+            tasks.add(task);
+            if(size.getAndIncrement() == 0)
+                execute(this);
+        }
+
+        public void run() {
+            do {
+                Runnable task=tasks.poll();
+                if(task != null) // cannot be null: a task is always added before size is incremented
+                    task.run();
+            }
+            while(size.decrementAndGet() > 0);
+        }
+    }
+}
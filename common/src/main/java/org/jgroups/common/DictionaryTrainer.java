@@ -0,0 +1,151 @@
+package org.jgroups.common;
+
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Creates a dictionary for {@link Compressor} from sample payloads (one payload per file), e.g. captured from
+ * application traffic. The dictionary consists of the segments (of a fixed length) which occur in most samples;
+ * the most frequent segments are placed at the end, as deflate finds them with the smallest distance.
+ * <br/>
+ * Prints the compression ratio of the samples with and without the dictionary.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class DictionaryTrainer {
+    protected int                    max_size=16 * 1024; // max size of the dictionary
+    protected int                    segment_size=8;     // length of the segments
+    protected int                    max_samples=10_000;
+    protected final List<ByteString> samples=new ArrayList<>();
+
+    public DictionaryTrainer maxSize(int s)     {max_size=s; return this;}
+    public DictionaryTrainer segmentSize(int s) {segment_size=s; return this;}
+    public DictionaryTrainer maxSamples(int m)  {max_samples=m; return this;}
+    public List<ByteString>  samples()          {return samples;}
+
+    public DictionaryTrainer add(byte[] sample) {
+        if(samples.size() < max_samples)
+            samples.add(ByteString.copyFrom(sample));
+        return this;
+    }
+
+    /** Adds a file as sample, or all files of a directory */
+    public DictionaryTrainer add(File file) throws IOException {
+        if(file.isDirectory()) {
+            File[] files=file.listFiles();
+            if(files != null) {
+                Arrays.sort(files);
+                for(File f: files)
+                    add(f);
+            }
+        }
+        else if(file.isFile())
+            add(Files.readAllBytes(file.toPath()));
+        return this;
+    }
+
+    /** Creates the dictionary from the samples added so far */
+    public byte[] train() {
+        // the number of samples a segment occurs in (a segment occurring many times in a single sample is compressed
+        // well without a dictionary)
+        Map<ByteString,int[]> counts=new HashMap<>();
+        Set<ByteString> seen=new HashSet<>();
+        for(ByteString sample: samples) {
+            seen.clear();
+            for(int i=0; i + segment_size <= sample.size(); i++) {
+                ByteString segment=sample.substring(i, i + segment_size);
+                if(seen.add(segment))
+                    counts.computeIfAbsent(segment, k -> new int[1])[0]++;
+            }
+        }
+        List<Map.Entry<ByteString,int[]>> segments=new ArrayList<>(counts.entrySet());
+        segments.removeIf(e -> e.getValue()[0] < 2);
+        segments.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+
+        // the most frequent segments are added last
+        List<ByteString> selected=new ArrayList<>();
+        int size=0;
+        for(Map.Entry<ByteString,int[]> e: segments) {
+            if(size + segment_size > max_size)
+                break;
+            selected.add(e.getKey());
+            size+=segment_size;
+        }
+        byte[] dict=new byte[size];
+        int pos=0;
+        for(int i=selected.size() - 1; i >= 0; i--) {
+            selected.get(i).copyTo(dict, pos);
+            pos+=segment_size;
+        }
+        return dict;
+    }
+
+    /** Returns the compression ratio of the samples with the given dictionary (null: no dictionary) */
+    public double ratio(byte[] dictionary) {
+        Compressor c=new Compressor().threshold(1).dictionary(dictionary);
+        long in=0, out=0;
+        for(ByteString sample: samples) {
+            ByteString compressed=c.compress(sample);
+            in+=sample.size();
+            out+=compressed != null? compressed.size() : sample.size();
+        }
+        c.close();
+        return in == 0? 0 : out / (double)in;
+    }
+
+    public static void main(String[] args) throws IOException {
+        DictionaryTrainer trainer=new DictionaryTrainer();
+        String output="dictionary.bin";
+        List<File> files=new ArrayList<>();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-size")) {
+                trainer.maxSize(Integer.parseInt(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-segment")) {
+                trainer.segmentSize(Integer.parseInt(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-max_samples")) {
+                trainer.maxSamples(Integer.parseInt(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-out")) {
+                output=args[++i];
+                continue;
+            }
+            if(args[i].startsWith("-")) {
+                help();
+                return;
+            }
+            files.add(new File(args[i]));
+        }
+        if(files.isEmpty()) {
+            help();
+            return;
+        }
+        for(File f: files)
+            trainer.add(f);
+        byte[] dict=trainer.train();
+        try(OutputStream out=new FileOutputStream(output)) {
+            out.write(dict);
+        }
+        System.out.printf("-- wrote dictionary of %,d bytes (from %,d samples) to %s\n",
+                          dict.length, trainer.samples().size(), output);
+        System.out.printf("-- compression ratio without dictionary: %.2f, with dictionary: %.2f\n",
+                          trainer.ratio(null), trainer.ratio(dict));
+    }
+
+    protected static void help() {
+        System.out.println("DictionaryTrainer [-size <max size of the dictionary>] [-segment <segment length>]\n" +
+                             "[-max_samples <max number of samples>] [-out <dictionary file>] " +
+                             "<sample file or directory>+\n" +
+                             "(each file contains a single payload)");
+    }
+}
@@ -0,0 +1,92 @@
+package org.jgroups.common;
+
+/**
+ * Optional features of the upgrade protocol. A client sends the bitmask of the features it supports in a Hello
+ * request at the start of the stream; the server replies with a HelloAck containing the features supported by both
+ * sides, and only those are used on the stream. Old clients send no Hello and old servers send no HelloAck; either
+ * way, no features are used and the original protocol applies.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public final class Features {
+    /** The client can apply a ViewDelta to the view it received before */
+    public static final int VIEW_DELTA=1;
+
+    /** The client can receive multiple messages as a single MessageBatch response */
+    public static final int BATCHING=2;
+
+    /** The client can send and receive messages which refer to the cluster and members by ids (see View) */
+    public static final int COMPACT=4;
+
+    /** The client can receive messages with compressed payloads (see {@link Compressor}) */
+    public static final int COMPRESSION=8;
+
+    /**
+     * The client sends and receives messages on a separate data stream, while views and other control requests and
+     * responses are sent on the control stream (the first stream)
+     */
+    public static final int DATA_STREAM=16;
+
+    /**
+     * The client delivers its own multicasts locally and marks them with {@link Utils#LOCAL_LOOPBACK}: the server
+     * doesn't send marked multicasts back to the sender
+     */
+    public static final int LOCAL_LOOPBACK=32;
+
+    /**
+     * The client announces its local view and sub-cluster (LocalView), and sends multicasts to its local cluster
+     * itself, marked with {@link Utils#SUB_CLUSTER}: the server relays marked multicasts only to the members which
+     * are not in the sender's local view
+     */
+    public static final int SUB_CLUSTER=64;
+
+    /** All features known to this version */
+    public static final int ALL=VIEW_DELTA | BATCHING | COMPACT | COMPRESSION | DATA_STREAM | LOCAL_LOOPBACK
+      | SUB_CLUSTER;
+
+    private Features() {
+    }
+
+    public static boolean isSet(int features, int feature) {
+        return (features & feature) == feature;
+    }
+
+    public static String print(int features) {
+        StringBuilder sb=new StringBuilder();
+        if(isSet(features, VIEW_DELTA))
+            sb.append("view-delta");
+        if(isSet(features, BATCHING))
+            sb.append(sb.length() > 0? ", " : "").append("batching");
+        if(isSet(features, COMPACT))
+            sb.append(sb.length() > 0? ", " : "").append("compact");
+        if(isSet(features, COMPRESSION))
+            sb.append(sb.length() > 0? ", " : "").append("compression");
+        if(isSet(features, DATA_STREAM))
+            sb.append(sb.length() > 0? ", " : "").append("data-stream");
+        if(isSet(features, LOCAL_LOOPBACK))
+            sb.append(sb.length() > 0? ", " : "").append("local-loopback");
+        if(isSet(features, SUB_CLUSTER))
+            sb.append(sb.length() > 0? ", " : "").append("sub-cluster");
+        return sb.length() == 0? "none" : sb.toString();
+    }
+
+    /** Parses a comma-separated list of feature names (as returned by {@link #print(int)}), "all" or "none" */
+    public static int parse(String s) {
+        int features=0;
+        for(String name: s.split(",")) {
+            switch(name.trim().toLowerCase()) {
+                case "view-delta":     features|=VIEW_DELTA; break;
+                case "batching":       features|=BATCHING; break;
+                case "compact":        features|=COMPACT; break;
+                case "compression":    features|=COMPRESSION; break;
+                case "data-stream":    features|=DATA_STREAM; break;
+                case "local-loopback": features|=LOCAL_LOOPBACK; break;
+                case "sub-cluster":    features|=SUB_CLUSTER; break;
+                case "all":            features|=ALL; break;
+                case "none":           case "": break;
+                default:               throw new IllegalArgumentException(String.format("feature %s not known", name));
+            }
+        }
+        return features;
+    }
+}
@@ -4,6 +4,8 @@ import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import io.netty.handler.ssl.SslContext;
 import org.jgroups.upgrade_server.*;
@@ -11,9 +13,19 @@ import org.jgroups.upgrade_server.UpgradeServiceGrpc.UpgradeServiceStub;
 
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
@@ -22,25 +34,72 @@ import static org.jgroups.common.ConnectionStatus.State.*;
 /**
  * Class which interacts with a gRPC server, e.g. sending and receiving messages, retry logic etc. The state transitions
  * are start - connect - disconnect (possibly multiple times) - stop
+ * <br/>
+ * If the server supports {@link Features#DATA_STREAM}, messages are sent and received on separate data streams, so
+ * that views and other control requests and responses (on the first stream) are not queued behind messages. With
+ * multiple data streams, unicasts are sent on the stream selected by their destination, and multicasts on the stream
+ * selected by the sending thread, so that the messages to the same destination (or sent by the same thread) are
+ * never reordered, while unrelated messages are sent in parallel. Messages sent before the data streams have been
+ * attached by the server are queued and then sent on the data streams, or on the control stream if a data stream
+ * could not be opened.
+ * <br/>
+ * OOB and INTERNAL messages ({@link Utils#isPriority(int)}) are sent on a priority lane: they bypass the bundler and
+ * are written to the control stream ahead of queued regular requests, so that e.g. heartbeats and RPC responses don't
+ * wait behind bulk transfers on the data streams. On reception, they are delivered in parallel (with a delivery pool).
+ * Like in JGroups, priority messages are not ordered relative to other messages.
  * @author Bela Ban
  * @since  1.1.1
  */
-public class GrpcClient implements StreamObserver<Response> {
-    protected String                       server_address="localhost";
-    protected int                          server_port=50051;
-    protected String                       server_cert;
-    protected ManagedChannel               channel;
-    protected UpgradeServiceStub           asyncStub;
+public class GrpcClient implements ClientResponseObserver<Request,Response> {
+    protected String                            server_address="localhost";
+    protected int                               server_port=50051;
+    protected String                            server_cert;
+    protected ManagedChannel                    channel;
+    protected UpgradeServiceStub                asyncStub;
     // protected UpgradeServiceBlockingStub   syncStub; // we can have both a sync/async stub; they use the same channel
-    protected StreamObserver<Request>      send_stream;
-    protected final Set<Consumer<View>>    view_handlers=new HashSet<>();
-    protected final Set<Consumer<Message>> message_handlers=new HashSet<>();
-    protected Consumer<GetViewResponse>    view_rsp_handler;
-    protected final ConnectionStatus       state=new ConnectionStatus();
-    protected long                         reconnect_interval=3000; // in ms
-    protected Runner                       reconnector;
-    protected Runnable                     reconnect_function;
-    protected static final Logger          log=Logger.getLogger(GrpcClient.class.getSimpleName());
+    protected volatile StreamObserver<Request>  send_stream;
+    protected SendQueue<Request>                send_queue; // requests are written to send_stream by a single writer
+    protected int                               send_queue_capacity; // max queued requests, 0: unbounded
+    protected boolean                           use_send_queue; // false: senders write to the stream holding a lock
+    // the streams to be completed (by COMPLETED in send_queue); send_stream may have been replaced in the meantime
+    protected final Queue<StreamObserver<Request>> completed_streams=new ConcurrentLinkedQueue<>();
+    protected ClientCallStreamObserver<Request> call_stream; // same as send_stream, used for flow control
+    protected long                              max_block_time; // max ms to block senders when not ready (0: don't block)
+    protected final Object                      ready_lock=new Object(); // signalled when a stream becomes ready
+    protected boolean                           bundling;       // send messages in batches
+    protected int                               bundler_max_size=64000, bundler_capacity=16384;
+    protected MessageBundler                    bundler;
+    protected int                               delivery_threads; // threads delivering messages, 0: the gRPC thread
+    protected boolean                           use_virtual_threads; // delivery threads are virtual threads
+    protected DeliveryPool                      delivery_pool;
+    protected final Set<Consumer<View>>         view_handlers=new HashSet<>();
+    protected final Set<Consumer<Message>>      message_handlers=new HashSet<>();
+    protected final Set<Consumer<MessageBatch>> batch_handlers=new HashSet<>(); // if empty: message_handlers are used
+    protected Consumer<GetViewResponse>         view_rsp_handler;
+    // optional features we support
+    protected int                               features=Features.VIEW_DELTA | Features.BATCHING
+                                                  | Features.COMPRESSION | Features.DATA_STREAM;
+    protected volatile int                      negotiated; // features agreed with the server (HelloAck), 0 until then
+    protected String                            cluster;
+    protected volatile View                     view; // the last view, to which a ViewDelta is applied
+    protected volatile MemberIds<Object>        member_ids; // the keys of the members by id (Features.COMPACT)
+    protected volatile MemberIds<Object>        installed_ids; // member_ids, once the view handlers installed the view
+    protected volatile boolean                  view_requested; // a full view was requested because of a gap
+    protected final Compressor                  compressor=new Compressor(); // compression is disabled by default
+    protected int                               data_streams=1; // number of data streams (Features.DATA_STREAM)
+    protected volatile DataStream[]             data; // the data streams, null if Features.DATA_STREAM is not used
+    protected volatile int                      msg_stream;  // the streams messages are sent on (UNDECIDED, CONTROL, DATA)
+    protected final AtomicInteger               unacked=new AtomicInteger(); // data streams not yet acked by the server
+    protected final List<PendingMessage>        pending_msgs=new ArrayList<>(); // sent while UNDECIDED
+    protected long                              view_wait_time=2000; // max ms a message is held for its view
+    protected final MessageHolder               held=new MessageHolder(); // the held messages of the control stream
+    protected final ConnectionStatus            state=new ConnectionStatus();
+    protected long                              reconnect_interval=3000; // in ms
+    protected Runner                            reconnector;
+    protected Runnable                          reconnect_function;
+    protected static final Logger               log=Logger.getLogger(GrpcClient.class.getSimpleName());
+    protected static final Request              COMPLETED=Request.newBuilder().build(); // completes send_stream
+    protected static final int                  UNDECIDED=0, CONTROL=1, DATA=2;
 
     public String     getServerAddress()                                  {return server_address;}
     public GrpcClient setServerAddress(String a)                          {server_address=a; return this;}
@@ -53,10 +112,42 @@ public class GrpcClient implements StreamObserver<Response> {
     public GrpcClient setReconnectionFunction(Runnable f)                 {reconnect_function=f; return this;}
     public long       getReconnectInterval()                              {return reconnect_interval;}
     public GrpcClient setReconnectInterval(long i)                        {reconnect_interval=i; return this;}
+    public int        getFeatures()                                       {return features;}
+    public GrpcClient setFeatures(int f)                                  {features=f; return this;}
+    public int        getNegotiatedFeatures()                             {return negotiated;}
+    public boolean    supports(int feature)                               {return Features.isSet(negotiated, feature);}
+    public long       getMaxBlockTime()                                   {return max_block_time;}
+    public GrpcClient setMaxBlockTime(long t)                             {max_block_time=t; return this;}
+    public long       getViewWaitTime()                                   {return view_wait_time;}
+    public GrpcClient setViewWaitTime(long t)                             {view_wait_time=t; return this;}
+    public int        getDataStreams()                                    {return data_streams;}
+    public GrpcClient setDataStreams(int n)                               {data_streams=n; return this;}
+    public boolean    hasDataStream()                                     {return msg_stream == DATA && data != null;}
+    public boolean    getBundling()                                       {return bundling;}
+    public GrpcClient setBundling(boolean b)                              {bundling=b; return this;}
+    public int        getBundlerMaxSize()                                 {return bundler_max_size;}
+    public GrpcClient setBundlerMaxSize(int s)                            {bundler_max_size=s; return this;}
+    public int        getBundlerCapacity()                                {return bundler_capacity;}
+    public GrpcClient setBundlerCapacity(int c)                           {bundler_capacity=c; return this;}
+    public MessageBundler bundler()                                       {return bundler;}
+    public Compressor compressor()                                        {return compressor;}
+    public int        getSendQueueCapacity()                              {return send_queue_capacity;}
+    public GrpcClient setSendQueueCapacity(int c)                         {send_queue_capacity=c; return this;}
+    public boolean    getUseSendQueue()                                   {return use_send_queue;}
+    public GrpcClient setUseSendQueue(boolean b)                          {use_send_queue=b; return this;}
+    public int        sendQueueSize()                                     {return send_queue != null? send_queue.size() + dataQueueSize() : 0;}
+    public int        getDeliveryThreads()                                {return delivery_threads;}
+    public GrpcClient setDeliveryThreads(int n)                           {delivery_threads=n; return this;}
+    public boolean    getUseVirtualThreads()                              {return use_virtual_threads;}
+    public GrpcClient setUseVirtualThreads(boolean b)                     {use_virtual_threads=b; return this;}
+    public DeliveryPool deliveryPool()                                    {return delivery_pool;}
+    public int        deliveryQueueSize()                                 {return delivery_pool != null? delivery_pool.size() : 0;}
     public GrpcClient addViewHandler(Consumer<View> h)                    {view_handlers.add(h); return this;}
     public GrpcClient removeViewHandler(Consumer<View> h)                 {view_handlers.remove(h); return this;}
     public GrpcClient addMessageHandler(Consumer<Message> h)              {message_handlers.add(h); return this;}
     public GrpcClient removeMessageHandler(Consumer<Message> h)           {message_handlers.remove(h); return this;}
+    public GrpcClient addBatchHandler(Consumer<MessageBatch> h)           {batch_handlers.add(h); return this;}
+    public GrpcClient removeBatchHandler(Consumer<MessageBatch> h)        {batch_handlers.remove(h); return this;}
     public GrpcClient setViewResponseHandler(Consumer<GetViewResponse> h) {this.view_rsp_handler=h; return this;}
     public Consumer<GetViewResponse> getViewResponseHandler()             {return view_rsp_handler;}
     public boolean    reconnectorRunning()                                {return reconnector.isRunning();}
@@ -78,13 +169,26 @@ public class GrpcClient implements StreamObserver<Response> {
         else
             channel=cb.sslContext(ctx).build();
         asyncStub=UpgradeServiceGrpc.newStub(channel);
+        // priority messages must not overtake the hello, join and other control requests
+        send_queue=new SendQueue<>(this::write, send_queue_capacity, max_block_time, use_send_queue)
+          .overtakable(r -> r.hasMessage() || r.hasBatch());
         // syncStub=UpgradeServiceGrpc.newBlockingStub(channel);
         if(reconnect_function != null)
             reconnector=createReconnector();
+        if(bundling)
+            bundler=new MessageBundler(bundler_capacity, Math.max(1, data_streams), this::sendBundle)
+              .setMaxSize(bundler_max_size).start();
+        if(delivery_threads > 0)
+            delivery_pool=new DeliveryPool(delivery_threads, use_virtual_threads).start();
         return this;
     }
 
     public GrpcClient stop() {
+        if(bundler != null)
+            bundler.stop();
+        if(delivery_pool != null)
+            delivery_pool.stop();
+        compressor.close();
         if(channel != null) {
             channel.shutdown();
             try {
@@ -98,66 +202,360 @@ public class GrpcClient implements StreamObserver<Response> {
 
     public synchronized GrpcClient registerView(String cluster, View local_view, Address local_addr) {
         if(state.setState(disconnected, connecting)) {
-            send_stream=asyncStub.connect(this);
+            this.cluster=cluster;
+            view=null;
+            member_ids=null;
+            held.clear();
+            openControlStream();
             RegisterView register_req=RegisterView.newBuilder().setClusterName(cluster).setView(local_view)
               .setLocalAddr(local_addr).build();
             Request req=Request.newBuilder().setRegisterReq(register_req).build();
-            send_stream.onNext(req);
+            send_queue.send(req);
         }
         return this;
     }
 
-    public synchronized GrpcClient getViewFromServer(String cluster) {
+    public GrpcClient getViewFromServer(String cluster) {
         GetViewRequest gv=GetViewRequest.newBuilder().setClusterName(cluster).build();
         Request req=Request.newBuilder().setGetViewReq(gv).build();
-        send_stream.onNext(req);
+        send_queue.send(req);
         return this;
     }
 
-    public synchronized GrpcClient connect(String cluster, Address local_addr) {
+    public GrpcClient connect(String cluster, Address local_addr) {
+        return connect(cluster, local_addr, null);
+    }
+
+    /**
+     * Joins a cluster
+     * @param local_view The local view and sub-cluster of the member ({@link Features#SUB_CLUSTER}), may be null. Sent
+     *                   with the JoinRequest, as the features have not yet been agreed on; old servers ignore it
+     */
+    public synchronized GrpcClient connect(String cluster, Address local_addr, LocalView local_view) {
         if(state.setState(disconnected, connecting)) {
-            send_stream=asyncStub.connect(this);
-            JoinRequest join_req=JoinRequest.newBuilder().setAddress(local_addr).setClusterName(cluster).build();
+            this.cluster=cluster;
+            view=null;
+            member_ids=null;
+            held.clear();
+            openControlStream();
+            JoinRequest.Builder join_req=JoinRequest.newBuilder().setAddress(local_addr).setClusterName(cluster);
+            if(local_view != null)
+                join_req.setLocalView(local_view);
             Request req=Request.newBuilder().setJoinReq(join_req).build();
-            send_stream.onNext(req);
+            send_queue.send(req);
         }
         return this;
     }
 
+    /** Announces a new local view to the server, if it supports {@link Features#SUB_CLUSTER} */
+    public GrpcClient sendLocalView(LocalView local_view) {
+        if(supports(Features.SUB_CLUSTER) && state.isState(connected))
+            send_queue.send(Request.newBuilder().setLocalView(local_view).build());
+        return this;
+    }
+
     public synchronized GrpcClient disconnect(String cluster, Address local_addr) {
         if(send_stream != null) {
             if(local_addr != null && cluster != null) {
                 LeaveRequest leave_req=LeaveRequest.newBuilder().setClusterName(cluster).setLeaver(local_addr).build();
                 Request request=Request.newBuilder().setLeaveReq(leave_req).build();
-                send_stream.onNext(request);
+                send_queue.send(request);
                 state.setState(disconnected);
             }
-            send_stream.onCompleted();
+            completed_streams.add(send_stream);
+            send_queue.send(COMPLETED);
+            closeDataStreams();
         }
         return this;
     }
 
-    public synchronized GrpcClient send(Request req) {
+    /**
+     * Sends a message; the message is added to the bundler if bundling is enabled (unless it is a priority message).
+     * The payload is compressed if it exceeds the compression threshold, and the server supports compression.
+     * The data stream of a bundled message is selected here, as the sending thread is not known by the bundler thread:
+     * the bundler has a partition per data stream, and sends the messages of a partition on the same data stream
+     */
+    public GrpcClient send(Message msg) {
+        if(supports(Features.COMPRESSION))
+            msg=compressor.compress(msg);
+        if(bundler == null || isPriority(msg))
+            return send(Request.newBuilder().setMessage(msg).build());
         if(state.isStateOneOf(disconnected, disconnecting))
             throw new IllegalStateException(String.format("not connected to %s:%d", server_address, server_port));
-        send_stream.onNext(req);
+        try {
+            bundler.send(msg, bundler.partitions() > 1? hash(msg) : 0);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return this;
+    }
+
+    /**
+     * Sends a request created by the bundler on the data stream selected by its partition. A batch is only sent if the
+     * server agreed on {@link Features#BATCHING}, otherwise (old server, or HelloAck not yet received) its messages
+     * are sent one by one
+     */
+    protected void sendBundle(Request req, int partition) {
+        if(state.isStateOneOf(disconnected, disconnecting))
+            throw new IllegalStateException(String.format("not connected to %s:%d", server_address, server_port));
+        if(!req.hasBatch() || supports(Features.BATCHING)) {
+            sendMessage(req, true, partition);
+            return;
+        }
+        for(Message msg: req.getBatch().getMessagesList())
+            sendMessage(Request.newBuilder().setMessage(msg).build(), true, partition);
+    }
+
+    /**
+     * Sends a request. With use_send_queue, the request is added to the send queue, and written to the stream by the
+     * thread which added a request to an empty queue, so application threads don't contend on a lock; otherwise it is
+     * written while holding the stream's lock. Messages and batches are sent on the data stream (if available),
+     * priority messages on the control stream, ahead of the queued requests
+     */
+    public GrpcClient send(Request req) {
+        if(state.isStateOneOf(disconnected, disconnecting))
+            throw new IllegalStateException(String.format("not connected to %s:%d", server_address, server_port));
+        if(req.hasMessage() && isPriority(req.getMessage()))
+            send_queue.sendPriority(req);
+        else if(req.hasMessage() || req.hasBatch())
+            sendMessage(req);
+        else
+            send_queue.send(req);
         return this;
     }
 
+    /** Sends a message (or batch) on the data or control streams, or queues it until that has been decided */
+    protected void sendMessage(Request req) {
+        sendMessage(req, false, 0);
+    }
+
+    /**
+     * @param hashed True if the data stream of all messages of req is selected by hash (e.g. the bundler's partition),
+     *               false if it is selected for each message
+     */
+    protected void sendMessage(Request req, boolean hashed, int hash) {
+        if(msg_stream == UNDECIDED) {
+            synchronized(pending_msgs) {
+                if(msg_stream == UNDECIDED) {
+                    // the stream is selected now, as it depends on the sending thread for multicasts
+                    if(hashed)
+                        pending_msgs.add(new PendingMessage(req, hash));
+                    else if(req.hasMessage())
+                        pending_msgs.add(new PendingMessage(req, hash(req.getMessage())));
+                    else {
+                        for(Message msg: req.getBatch().getMessagesList())
+                            pending_msgs.add(new PendingMessage(Request.newBuilder().setMessage(msg).build(), hash(msg)));
+                    }
+                    return;
+                }
+            }
+        }
+        int stream=msg_stream;
+        if(hashed)
+            sendMessage(stream, req, hash);
+        else if(req.hasBatch())
+            sendBatch(stream, req);
+        else {
+            DataStream[] d=data;
+            sendMessage(stream, req, d != null && d.length > 1? hash(req.getMessage()) : 0);
+        }
+    }
+
+    /**
+     * Sends a message (or batch) on the data stream selected by hash, or on the control stream if messages are not
+     * sent on the data streams, or if the selected data stream is not attached
+     */
+    protected void sendMessage(int stream, Request req, int hash) {
+        DataStream[] d=data;
+        if(stream == DATA && d != null) {
+            DataStream s=d[Math.floorMod(hash, d.length)];
+            if(s.isAttached()) {
+                s.send(req);
+                return;
+            }
+        }
+        send_queue.send(req);
+    }
+
+    /** Sends a batch; with multiple data streams, the batch is split into one batch per data stream */
+    protected void sendBatch(int stream, Request req) {
+        DataStream[] d=data;
+        if(stream != DATA || d == null || d.length == 1) {
+            sendMessage(stream, req, 0);
+            return;
+        }
+        Map<Integer,MessageBatch.Builder> batches=new LinkedHashMap<>();
+        for(Message msg: req.getBatch().getMessagesList())
+            batches.computeIfAbsent(Math.floorMod(hash(msg), d.length), k -> MessageBatch.newBuilder()).addMessages(msg);
+        for(Map.Entry<Integer,MessageBatch.Builder> e: batches.entrySet())
+            sendMessage(stream, Request.newBuilder().setBatch(e.getValue()).build(), e.getKey());
+    }
+
+    /**
+     * Selects the data stream of a message: unicasts by destination, so that the messages to the same destination are
+     * not reordered, and multicasts by the sending thread
+     */
+    protected int hash(Message msg) {
+        if(msg.hasDestination())
+            return Utils.key(msg.getDestination()).hashCode();
+        if(msg.getDestId() > 0) {
+            MemberIds<Object> ids=member_ids;
+            Object key=ids != null? ids.member(msg.getDestId()) : null;
+            return key != null? key.hashCode() : msg.getDestId();
+        }
+        return Long.hashCode(Thread.currentThread().getId());
+    }
+
+    /**
+     * Sets the streams on which messages are sent. The messages queued while this was undecided are sent first; the
+     * data streams are only selected if this was undecided
+     */
+    protected void selectStream(int stream) {
+        synchronized(pending_msgs) {
+            if(msg_stream != UNDECIDED) {
+                if(stream == CONTROL)
+                    msg_stream=CONTROL;
+                return;
+            }
+            for(PendingMessage m: pending_msgs)
+                sendMessage(stream, m.req, m.hash);
+            pending_msgs.clear();
+            msg_stream=stream;
+        }
+    }
+
+    /** Writes a request to the stream; called by a single thread at a time (the writer of the send queue) */
+    protected void write(Request req) {
+        if(req == COMPLETED) {
+            completed_streams.remove().onCompleted();
+            return;
+        }
+        if(max_block_time > 0)
+            waitUntilReady(call_stream, max_block_time);
+        send_stream.onNext(req);
+    }
+
+    /**
+     * Opens the control stream and starts the negotiation of features. If separate data streams are agreed on, they
+     * are opened when the HelloAck is received; until then, messages are queued
+     */
+    protected void openControlStream() {
+        closeDataStreams();
+        synchronized(pending_msgs) {
+            pending_msgs.clear();
+            msg_stream=Features.isSet(features, Features.DATA_STREAM)? UNDECIDED : CONTROL;
+        }
+        send_stream=asyncStub.connect(this);
+        sendHello();
+    }
+
+    /** Opens the data streams, which the server attaches to the control stream with the given session-id */
+    protected void openDataStreams(long session_id, int num) {
+        DataStream[] d=new DataStream[num];
+        for(int i=0; i < num; i++)
+            d[i]=new DataStream();
+        unacked.set(num);
+        data=d;
+        for(DataStream s: d)
+            s.start(session_id);
+    }
+
+    /** Completes the data streams (if any) after the messages queued so far have been written */
+    protected void closeDataStreams() {
+        DataStream[] d=data;
+        data=null;
+        if(d != null) {
+            for(DataStream s: d)
+                s.close();
+        }
+    }
+
+    /**
+     * Called when the server acked (or refused) a data stream. When all data streams have been acked, messages are
+     * sent on the data streams, or on the control stream if none was attached
+     */
+    protected void dataStreamAcked(DataStream s) {
+        DataStream[] d=data;
+        if(d == null || !Arrays.asList(d).contains(s) || unacked.decrementAndGet() > 0)
+            return;
+        int attached=0;
+        for(DataStream ds: d)
+            attached+=ds.isAttached()? 1 : 0;
+        log.fine(String.format("%d/%d data streams attached", attached, d.length));
+        selectStream(attached > 0? DATA : CONTROL);
+    }
+
+    protected int dataQueueSize() {
+        DataStream[] d=data;
+        int size=0;
+        if(d != null) {
+            for(DataStream s: d)
+                size+=s.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Starts the negotiation of features by sending a Hello as first request of a new stream. Until the HelloAck is
+     * received (or if the server doesn't support Hello), no features are used
+     */
+    protected void sendHello() {
+        negotiated=0;
+        if(features != 0) {
+            Hello hello=Hello.newBuilder().setFeatures(features).setDataStreams(Math.max(1, data_streams)).build();
+            send_queue.send(Request.newBuilder().setHello(hello).build());
+        }
+    }
+
+    public void beforeStart(ClientCallStreamObserver<Request> s) {
+        call_stream=s;
+        s.setOnReadyHandler(this::onReady);
+    }
+
     public void onNext(Response rsp) {
+        held.onNext(rsp);
+    }
+
+    /** Handles a response received on the control stream or on a data stream */
+    protected void handleResponse(Response rsp) {
         if(rsp.hasMessage()) {
             handleMessage(rsp.getMessage());
             return;
         }
+        if(rsp.hasBatch()) {
+            handleBatch(rsp.getBatch());
+            return;
+        }
         if(rsp.hasView()) {
             handleView(rsp.getView());
             return;
         }
+        if(rsp.hasViewDelta()) {
+            handleViewDelta(rsp.getViewDelta());
+            return;
+        }
+        if(rsp.hasHelloAck()) {
+            HelloAck ack=rsp.getHelloAck();
+            negotiated=ack.getFeatures() & features;
+            log.fine(String.format("features agreed with server: %s", Features.print(negotiated)));
+            if(supports(Features.DATA_STREAM) && ack.getSessionId() != 0)
+                openDataStreams(ack.getSessionId(), Math.max(1, ack.getDataStreams()));
+            else
+                selectStream(CONTROL);
+            return;
+        }
         if(rsp.hasRegViewOk()) {
+            if(data == null) // old server: no HelloAck was received
+                selectStream(CONTROL);
             state.setState(connected);
             return;
         }
         if(rsp.hasGetViewRsp()) {
+            if(view_requested) {
+                view_requested=false;
+                handleView(rsp.getGetViewRsp().getView());
+            }
             if(view_rsp_handler != null)
                 view_rsp_handler.accept(rsp.getGetViewRsp());
             return;
@@ -176,16 +574,392 @@ public class GrpcClient implements StreamObserver<Response> {
     }
 
 
+    /**
+     * Blocks until the stream to the server is ready (gRPC flow control), so that senders are slowed down when the
+     * server stops reading from our stream (backpressure), instead of buffering an unlimited number of requests.
+     * Returns after max_time ms even if the stream is not ready, to prevent distributed deadlocks (e.g. when a
+     * response is sent from a receiver thread). Doesn't use the client's lock, as the caller may hold the write lock
+     * of a {@link SendQueue}, which threads holding the client's lock acquire to send requests.
+     */
+    protected void waitUntilReady(ClientCallStreamObserver<Request> s, long max_time) {
+        if(s == null || s.isReady())
+            return;
+        long deadline=System.currentTimeMillis() + max_time;
+        synchronized(ready_lock) {
+            try {
+                for(long wait_time=max_time; wait_time > 0 && !s.isReady() && state.isStateOneOf(connecting, connected);
+                    wait_time=deadline - System.currentTimeMillis())
+                    ready_lock.wait(wait_time);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Called by gRPC when the stream becomes writable again */
+    protected void onReady() {
+        synchronized(ready_lock) {
+            ready_lock.notifyAll();
+        }
+    }
+
+    /** True if a message (or a message of a batch) needs a newer view than the installed one */
+    protected boolean needsNewerView(Response rsp) {
+        if(rsp.hasMessage())
+            return needsNewerView(rsp.getMessage());
+        if(rsp.hasBatch()) {
+            for(Message msg: rsp.getBatch().getMessagesList())
+                if(needsNewerView(msg))
+                    return true;
+        }
+        return false;
+    }
+
+    /** True if a message in compact form refers to a member which is not in the installed view (ids are not reused) */
+    protected boolean needsNewerView(Message msg) {
+        int id=Math.max(msg.hasSender()? 0 : msg.getSenderId(), msg.hasDestination()? 0 : msg.getDestId());
+        if(id == 0)
+            return false;
+        MemberIds<Object> ids=installed_ids;
+        return ids == null || ids.clusterId() != msg.getClusterId() || id > ids.maxId();
+    }
+
+    /**
+     * Runs the delivery of a message which was not received from the server (e.g. a message sent by a member to
+     * itself) on the delivery pool if enabled, with the same ordering as received messages, or on the caller's thread
+     * @param sender The identity of the sender; messages from the same sender (unless oob) are delivered in order
+     * @param oob True if the message is a priority message, which is delivered without ordering
+     */
+    public void deliverLocally(Object sender, boolean oob, Runnable task) {
+        DeliveryPool pool=delivery_pool;
+        if(pool != null)
+            pool.deliver(sender, oob, 1, task);
+        else
+            task.run();
+    }
+
+    /** Delivers the message on the caller's thread, or passes it to the delivery pool (if enabled) */
     protected void handleMessage(Message msg) {
+        if(delivery_pool != null)
+            delivery_pool.deliver(sender(msg), isPriority(msg), 1, () -> deliverMessage(msg));
+        else
+            deliverMessage(msg);
+    }
+
+    /**
+     * Delivers the batch on the caller's thread, or passes it to the delivery pool (if enabled). In the latter case,
+     * the batch is split into one batch per sender for regular and priority messages, so that messages from different
+     * senders can be delivered in parallel
+     */
+    protected void handleBatch(MessageBatch batch) {
+        if(delivery_pool == null) {
+            deliverBatch(batch);
+            return;
+        }
+        Map<Object,MessageBatch.Builder> reg=new LinkedHashMap<>(), oob=new LinkedHashMap<>();
+        for(Message msg: batch.getMessagesList())
+            (isPriority(msg)? oob : reg).computeIfAbsent(sender(msg), k -> MessageBatch.newBuilder()).addMessages(msg);
+        deliver(reg, false);
+        deliver(oob, true);
+    }
+
+    protected void deliver(Map<Object,MessageBatch.Builder> batches, boolean oob) {
+        for(Map.Entry<Object,MessageBatch.Builder> e: batches.entrySet()) {
+            MessageBatch b=e.getValue().build();
+            delivery_pool.deliver(e.getKey(), oob, b.getMessagesCount(), () -> deliverBatch(b));
+        }
+    }
+
+    protected void deliverMessage(Message msg) {
+        if((msg=decompress(msg)) == null)
+            return;
         for(Consumer<Message> c: message_handlers)
             c.accept(msg);
     }
 
+    /** Passes the batch to the batch handlers, or each message to the message handlers if there are none */
+    protected void deliverBatch(MessageBatch batch) {
+        if(batch_handlers.isEmpty()) {
+            for(Message msg: batch.getMessagesList())
+                deliverMessage(msg);
+            return;
+        }
+        batch=decompress(batch);
+        for(Consumer<MessageBatch> c: batch_handlers)
+            c.accept(batch);
+    }
+
+    /** Returns the message with a decompressed payload, or null (and logs an error) if decompression failed */
+    protected Message decompress(Message msg) {
+        try {
+            return compressor.decompress(msg);
+        }
+        catch(Exception e) {
+            log.severe(String.format("failed decompressing payload (dropping message): %s", e));
+            return null;
+        }
+    }
+
+    /** Returns the batch with all payloads decompressed; messages which cannot be decompressed are dropped */
+    protected MessageBatch decompress(MessageBatch batch) {
+        MessageBatch.Builder builder=null;
+        for(int i=0; i < batch.getMessagesCount(); i++) {
+            Message msg=batch.getMessages(i);
+            if(builder == null && msg.getUncompressedSize() <= 0)
+                continue;
+            if(builder == null) { // first compressed message: copy the messages before it
+                builder=MessageBatch.newBuilder();
+                for(int j=0; j < i; j++)
+                    builder.addMessages(batch.getMessages(j));
+            }
+            if((msg=decompress(msg)) != null)
+                builder.addMessages(msg);
+        }
+        return builder != null? builder.build() : batch;
+    }
+
+    /** The sender's identity, which is the same for messages in full and in compact form */
+    protected Object sender(Message msg) {
+        if(msg.hasSender())
+            return Utils.key(msg.getSender());
+        MemberIds<Object> ids=member_ids;
+        Object key=ids != null && msg.getSenderId() > 0? ids.member(msg.getSenderId()) : null;
+        return key != null? key : "";
+    }
+
+    protected static boolean isPriority(Message msg) {
+        return Utils.isPriority(msg.getFlags());
+    }
+
     protected void handleView(View view) {
+        if(delivery_pool != null) { // remove the (idle) delivery queues of members which left
+            Set<Object> mbrs=new HashSet<>();
+            for(Address mbr: view.getMemberList())
+                mbrs.add(Utils.key(mbr));
+            delivery_pool.removeSenders(k -> !mbrs.contains(k));
+        }
+        this.view=view;
+        MemberIds<Object> ids=member_ids=supports(Features.COMPACT)? MemberIds.create(view, Utils::key) : null;
+        if(data == null) // old server: no HelloAck was received
+            selectStream(CONTROL);
         state.setState(connected);
         stopReconnector();
         for(Consumer<View> c: view_handlers)
             c.accept(view);
+        // set after the view handlers have installed the view, as this releases the messages held for it
+        installed_ids=ids;
+        held.release();
+        DataStream[] d=data;
+        if(d != null) {
+            for(DataStream s: d)
+                s.held.release();
+        }
+    }
+
+    /** Applies the delta to the last view. If we don't have the delta's base view, the full view is fetched */
+    protected void handleViewDelta(ViewDelta delta) {
+        View base=view;
+        if(base == null || base.getViewId().getId() != delta.getBaseId()) {
+            log.warning(String.format("received delta for base view %d, but have view %s: fetching full view",
+                                      delta.getBaseId(), base != null? base.getViewId().getId() : "n/a"));
+            view_requested=true;
+            getViewFromServer(cluster);
+            return;
+        }
+        Set<Object> left=new HashSet<>(delta.getLeftCount());
+        for(Address addr: delta.getLeftList())
+            left.add(Utils.key(addr));
+        View.Builder vb=View.newBuilder().setViewId(delta.getViewId()).setClusterId(delta.getClusterId());
+        boolean ids=base.getMemberIdCount() == base.getMemberCount();
+        for(int i=0; i < base.getMemberCount(); i++) {
+            Address mbr=base.getMember(i);
+            if(!left.contains(Utils.key(mbr))) {
+                vb.addMember(mbr);
+                if(ids)
+                    vb.addMemberId(base.getMemberId(i));
+            }
+        }
+        vb.addAllMember(delta.getJoinedList());
+        if(ids)
+            vb.addAllMemberId(delta.getJoinedIdList());
+        handleView(vb.build());
+    }
+
+    /**
+     * A data stream ({@link Features#DATA_STREAM}), which is attached by the server to the control stream. Messages
+     * are sent and received on the data streams, and all other requests and responses on the control stream
+     */
+    protected class DataStream implements ClientResponseObserver<Request,Response> {
+        protected final SendQueue<Request>          queue=new SendQueue<>(this::write, send_queue_capacity, max_block_time,
+                                                                              use_send_queue);
+        protected final MessageHolder               held=new MessageHolder();
+        protected StreamObserver<Request>           stream;
+        protected ClientCallStreamObserver<Request> call;
+        protected volatile boolean                  attached, closed;
+        protected boolean                           acked;
+
+        protected boolean isAttached() {return attached && !closed;}
+
+        /** Opens the stream and asks the server to attach it to the control stream with the given session-id */
+        protected void start(long session_id) {
+            stream=asyncStub.connect(this);
+            Hello hello=Hello.newBuilder().setFeatures(negotiated).setAttach(session_id).build();
+            queue.send(Request.newBuilder().setHello(hello).build());
+        }
+
+        protected void send(Request req) {
+            queue.send(req);
+        }
+
+        /** Completes the stream after all queued requests have been written */
+        protected void close() {
+            queue.send(COMPLETED);
+        }
+
+        protected void write(Request req) {
+            if(req == COMPLETED) {
+                stream.onCompleted();
+                return;
+            }
+            if(max_block_time > 0)
+                waitUntilReady(call, max_block_time);
+            stream.onNext(req);
+        }
+
+        /** Called once, when the server acked or refused the stream, or when the stream was closed before */
+        protected void acked(boolean ok) {
+            if(acked)
+                return;
+            acked=true;
+            attached=ok;
+            dataStreamAcked(this);
+        }
+
+        public void beforeStart(ClientCallStreamObserver<Request> s) {
+            call=s;
+            s.setOnReadyHandler(GrpcClient.this::onReady);
+        }
+
+        public void onNext(Response rsp) {
+            if(rsp.hasHelloAck()) {
+                boolean ok=rsp.getHelloAck().getFeatures() != 0;
+                if(!ok) {
+                    log.warning("server did not attach data stream: using the control stream for its messages");
+                    close();
+                }
+                acked(ok);
+                return;
+            }
+            held.onNext(rsp);
+        }
+
+        public void onError(Throwable t) {
+            closed=true;
+            acked(false);
+        }
+
+        public void onCompleted() {
+            closed=true;
+            acked(false);
+        }
+    }
+
+    /**
+     * Holds the messages and batches received on a stream which refer (in compact form) to a member of a view which
+     * has not yet been installed: messages are received on the data streams and views on the control stream, so a
+     * message can arrive before its view. Messages received after a held message are held too, so that the order of
+     * the stream is preserved. The held messages are delivered when the view has been installed, or dropped (with a
+     * warning) when they have been held for more than view_wait_time ms; this is checked when the next response is
+     * received or when a view is installed. A held message is never delivered with an unknown sender or destination.
+     * <br/>
+     * All other responses (e.g. views) are handled immediately. The server only relays a message in compact form to a
+     * member after sending it the view announcing the message's ids, and expands it otherwise
+     */
+    protected class MessageHolder {
+        protected final Deque<HeldResponse> queue=new ArrayDeque<>(); // guarded by this
+        protected boolean                   draining; // a thread is delivering the held messages; guarded by this
+
+        /** Called by the stream's gRPC thread */
+        protected void onNext(Response rsp) {
+            if(!rsp.hasMessage() && !rsp.hasBatch()) {
+                handleResponse(rsp);
+                return;
+            }
+            boolean deliver;
+            synchronized(this) {
+                if(!(deliver=queue.isEmpty() && !draining && !needsNewerView(rsp))) {
+                    queue.add(new HeldResponse(rsp, System.currentTimeMillis() + view_wait_time));
+                    if(draining) // delivered by the draining thread
+                        return;
+                    draining=true;
+                }
+            }
+            if(deliver)
+                handleResponse(rsp);
+            else
+                drain();
+        }
+
+        /** Called when a view has been installed */
+        protected void release() {
+            synchronized(this) {
+                if(queue.isEmpty() || draining)
+                    return;
+                draining=true;
+            }
+            drain();
+        }
+
+        protected synchronized void clear() {
+            queue.clear();
+        }
+
+        /** Delivers (or drops) the held messages in order, until a message needs a view which is not yet installed */
+        protected void drain() {
+            for(;;) {
+                HeldResponse h;
+                boolean drop;
+                synchronized(this) {
+                    if((h=queue.peek()) == null || ((drop=needsNewerView(h.rsp)) && !h.expired())) {
+                        draining=false;
+                        return;
+                    }
+                    queue.poll();
+                }
+                if(drop)
+                    log.warning(String.format("dropping %s referring to a member of a view which was not received " +
+                                                "within %d ms", h.rsp.hasBatch()? "batch" : "message", view_wait_time));
+                else
+                    handleResponse(h.rsp);
+            }
+        }
+    }
+
+    protected static class HeldResponse {
+        protected final Response rsp;
+        protected final long     deadline; // the time (ms) after which the response is dropped
+
+        protected HeldResponse(Response rsp, long deadline) {
+            this.rsp=rsp;
+            this.deadline=deadline;
+        }
+
+        protected boolean expired() {return System.currentTimeMillis() >= deadline;}
+    }
+
+    /**
+     * A message (or a batch of the bundler) sent before the streams were selected, and the hash selecting its data
+     * stream
+     */
+    protected static class PendingMessage {
+        protected final Request req;
+        protected final int     hash;
+
+        protected PendingMessage(Request req, int hash) {
+            this.req=req;
+            this.hash=hash;
+        }
     }
 
     protected synchronized Runner createReconnector() {
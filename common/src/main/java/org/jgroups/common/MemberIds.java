@@ -0,0 +1,70 @@
+package org.jgroups.common;
+
+import org.jgroups.upgrade_server.Address;
+import org.jgroups.upgrade_server.View;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The ids of a cluster and its members, as announced by the UpgradeServer with a view. Messages in compact form
+ * ({@link Features#COMPACT}) refer to the cluster and to their sender and destination by these ids. Members are of
+ * type A, e.g. JGroups addresses, or the keys returned by {@link Utils#key(Address)}.
+ * <br/>
+ * Immutable; a new instance is created for every view.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class MemberIds<A> {
+    protected final int            cluster_id;
+    protected final Map<A,Integer> ids;
+    protected final Map<Integer,A> members;
+    protected int                  max_id; // ids are not reused, so a higher id refers to a member of a newer view
+
+    protected MemberIds(int cluster_id, int size) {
+        this.cluster_id=cluster_id;
+        this.ids=new HashMap<>(size * 2);
+        this.members=new HashMap<>(size * 2);
+    }
+
+    /**
+     * Creates the ids from a view, converting its members with the given function
+     * @return The ids, or null if the view has no ids (sent by a server which doesn't support compact messages)
+     */
+    public static <A> MemberIds<A> create(View view, Function<Address,A> converter) {
+        List<Address> mbrs=view.getMemberList();
+        if(view.getClusterId() <= 0 || view.getMemberIdCount() != mbrs.size())
+            return null;
+        MemberIds<A> retval=new MemberIds<>(view.getClusterId(), mbrs.size());
+        for(int i=0; i < mbrs.size(); i++) {
+            A mbr=converter.apply(mbrs.get(i));
+            int id=view.getMemberId(i);
+            retval.ids.put(mbr, id);
+            retval.members.put(id, mbr);
+            retval.max_id=Math.max(retval.max_id, id);
+        }
+        return retval;
+    }
+
+    public int clusterId() {return cluster_id;}
+    public int size()      {return ids.size();}
+    public int maxId()     {return max_id;}
+
+    /** Returns the id of a member, or 0 if the member is not in the view */
+    public int id(A mbr) {
+        Integer id=mbr != null? ids.get(mbr) : null;
+        return id != null? id : 0;
+    }
+
+    /** Returns the member with the given id, or null if not found */
+    public A member(int id) {
+        return members.get(id);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cluster %d: %s", cluster_id, members);
+    }
+}
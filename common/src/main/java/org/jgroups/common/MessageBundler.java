@@ -0,0 +1,158 @@
+package org.jgroups.common;
+
+import org.jgroups.upgrade_server.Message;
+import org.jgroups.upgrade_server.MessageBatch;
+import org.jgroups.upgrade_server.Request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bundles messages into {@link MessageBatch} requests, similar to JGroups' TransferQueueBundler: senders add messages
+ * to a queue, which is drained by a single bundler thread. The bundler sends a batch when the accumulated size exceeds
+ * max_size, or when the queue is empty. A single message is sent as is (not as a batch).
+ * <br/>
+ * Messages are bundled by partition, e.g. the data stream selected by the sending thread (which is no longer known
+ * when the bundler thread sends the batch): a batch only contains messages of the same partition, and is passed to
+ * the transport together with its partition.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class MessageBundler {
+    protected final BlockingQueue<Entry>           queue;
+    protected final List<Entry>                    remove_queue;
+    protected final Batch[]                        batches; // one per partition
+    protected final BiConsumer<Request,Integer>    transport; // accepts a batch (or single message) and its partition
+    protected int                                  max_size=64000; // max number of bytes of a batch
+    protected Runner                               runner;
+    protected long                                 num_batches, num_single_msgs; // accessed only by the bundler thread
+    protected static final Logger                  log=Logger.getLogger(MessageBundler.class.getSimpleName());
+
+    public MessageBundler(int capacity, Consumer<Request> transport) {
+        this(capacity, 1, (req, partition) -> transport.accept(req));
+    }
+
+    public MessageBundler(int capacity, int partitions, BiConsumer<Request,Integer> transport) {
+        this.queue=new ArrayBlockingQueue<>(capacity);
+        this.remove_queue=new ArrayList<>(capacity);
+        this.batches=new Batch[Math.max(1, partitions)];
+        for(int i=0; i < batches.length; i++)
+            batches[i]=new Batch();
+        this.transport=transport;
+    }
+
+    public int            getMaxSize()        {return max_size;}
+    public MessageBundler setMaxSize(int s)   {max_size=s; return this;}
+    public int            size()              {return queue.size();}
+    public int            partitions()        {return batches.length;}
+    public long           numBatches()        {return num_batches;}
+    public long           numSingleMessages() {return num_single_msgs;}
+    public boolean        isRunning()         {return runner != null && runner.isRunning();}
+
+    public synchronized MessageBundler start() {
+        if(runner == null)
+            runner=new Runner("bundler", this::run, null).daemon(true);
+        runner.start();
+        return this;
+    }
+
+    public synchronized MessageBundler stop() {
+        if(runner != null)
+            runner.stop();
+        return this;
+    }
+
+    /** Adds a message to the queue; blocks while the queue is full */
+    public void send(Message msg) throws InterruptedException {
+        send(msg, 0);
+    }
+
+    /**
+     * Adds a message to the queue; blocks while the queue is full
+     * @param hash Selects the partition of the message (modulo the number of partitions)
+     */
+    public void send(Message msg, int hash) throws InterruptedException {
+        queue.put(new Entry(msg, Math.floorMod(hash, batches.length)));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queue: %d, batches: %,d, single messages: %,d", size(), num_batches, num_single_msgs);
+    }
+
+    protected void run() {
+        try {
+            Entry e=queue.take();
+            add(e);
+            for(;;) {
+                remove_queue.clear();
+                if(queue.drainTo(remove_queue) == 0)
+                    break;
+                for(Entry m: remove_queue)
+                    add(m);
+            }
+            for(int i=0; i < batches.length; i++)
+                sendBatch(i);
+        }
+        catch(InterruptedException ignored) {
+            // stop() interrupts the bundler thread
+        }
+    }
+
+    protected void add(Entry e) {
+        Batch batch=batches[e.partition];
+        int size=e.msg.getSerializedSize();
+        if(batch.count + size > max_size && !batch.msgs.isEmpty())
+            sendBatch(e.partition);
+        batch.msgs.add(e.msg);
+        batch.count+=size;
+    }
+
+    protected void sendBatch(int partition) {
+        Batch batch=batches[partition];
+        if(batch.msgs.isEmpty())
+            return;
+        try {
+            Request req;
+            if(batch.msgs.size() == 1) {
+                req=Request.newBuilder().setMessage(batch.msgs.get(0)).build();
+                num_single_msgs++;
+            }
+            else {
+                req=Request.newBuilder().setBatch(MessageBatch.newBuilder().addAllMessages(batch.msgs)).build();
+                num_batches++;
+            }
+            transport.accept(req, partition);
+        }
+        catch(Throwable t) {
+            log.log(Level.WARNING, String.format("failed sending %d message(s)", batch.msgs.size()), t);
+        }
+        finally {
+            batch.msgs.clear();
+            batch.count=0;
+        }
+    }
+
+    /** A queued message and its partition */
+    protected static class Entry {
+        protected final Message msg;
+        protected final int     partition;
+
+        protected Entry(Message msg, int partition) {
+            this.msg=msg;
+            this.partition=partition;
+        }
+    }
+
+    /** The messages of a partition to be sent as one batch, and their size (in bytes) */
+    protected static class Batch {
+        protected final List<Message> msgs=new ArrayList<>();
+        protected int                 count;
+    }
+}
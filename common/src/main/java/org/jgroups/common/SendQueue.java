@@ -0,0 +1,170 @@
+package org.jgroups.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A lock-free multi-producer single-consumer queue, used to write requests to a (non thread-safe) stream. Producers
+ * add elements to the queue; the producer which adds an element to an empty queue becomes the writer, and writes
+ * elements (including those added concurrently by other producers) until the queue is empty. Elements are therefore
+ * written in the order in which they were added, and by a single thread at a time, but producers don't contend on a
+ * lock.
+ * <br/>
+ * If capacity is greater than 0, producers block while the queue is full (for at most max_block_time ms, or until
+ * space is available if max_block_time is 0).
+ * <br/>
+ * Elements added with {@link #sendPriority(Object)} are written before all regular elements which have not yet been
+ * written, and never block on a full queue. They must not overtake every element though, e.g. a message must not be
+ * written before the (earlier) handshake or join request: as long as a regular element which cannot be overtaken
+ * (see {@link #overtakable(Predicate)}) is queued, priority elements are added to the end of the regular queue.
+ * <br/>
+ * If queued is false, elements are not queued, but written directly by the caller while holding a lock, which is
+ * how requests were sent before. This is the default until the queue has been shown to be faster (see SendBenchmark
+ * in the tests): on a single core, the lock was faster.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class SendQueue<T> {
+    protected final Queue<T>        queue=new ConcurrentLinkedQueue<>();
+    protected final Queue<T>        priority=new ConcurrentLinkedQueue<>(); // written before the elements in queue
+    // number of queued elements; the thread which increments this from 0 to 1 becomes the writer
+    protected final AtomicInteger   size=new AtomicInteger();
+    protected final Consumer<T>     writer;
+    protected final int             capacity;        // max number of queued elements, 0: unbounded
+    protected final long            max_block_time;  // max ms to block when full, 0: block until space is available
+    protected Predicate<T>          overtakable;     // regular elements which priority elements may overtake (null: all)
+    protected final AtomicInteger   barriers=new AtomicInteger(); // queued regular elements which cannot be overtaken
+    protected volatile int          waiters;         // number of producers blocked on a full queue
+    protected final Object          lock=new Object(); // only used to block producers when the queue is full
+    protected final boolean         queued;          // false: elements are written by the caller, holding write_lock
+    protected final Object          write_lock=new Object();
+    protected static final Logger   log=Logger.getLogger(SendQueue.class.getSimpleName());
+
+    public SendQueue(Consumer<T> writer) {
+        this(writer, 0, 0);
+    }
+
+    public SendQueue(Consumer<T> writer, int capacity, long max_block_time) {
+        this(writer, capacity, max_block_time, true);
+    }
+
+    public SendQueue(Consumer<T> writer, int capacity, long max_block_time, boolean queued) {
+        this.writer=writer;
+        this.capacity=capacity;
+        this.max_block_time=max_block_time;
+        this.queued=queued;
+    }
+
+    public int     size()     {return size.get();}
+    public int     capacity() {return capacity;}
+    public boolean queued()   {return queued;}
+
+    /** Sets the regular elements which priority elements may be written before. Has to be set before sending */
+    public SendQueue<T> overtakable(Predicate<T> p) {overtakable=p; return this;}
+
+    /** Adds an element to the queue. Writes all queued elements if no other thread is currently writing */
+    public void send(T el) {
+        if(!queued) {
+            writeDirect(el);
+            return;
+        }
+        if(capacity > 0 && size.get() >= capacity)
+            waitForSpace();
+        if(overtakable != null && !overtakable.test(el))
+            barriers.incrementAndGet(); // before the element is added, see sendPriority()
+        queue.add(el);
+        if(size.getAndIncrement() == 0)
+            drain();
+    }
+
+    @Override
+    public String toString() {
+        return capacity > 0? String.format("%d/%d", size(), capacity) : String.valueOf(size());
+    }
+
+    /**
+     * Adds an element which is written before all queued regular elements, or behind them if one of them cannot be
+     * overtaken; never blocks
+     */
+    public void sendPriority(T el) {
+        if(!queued) {
+            writeDirect(el);
+            return;
+        }
+        if(barriers.get() > 0)
+            queue.add(el);
+        else
+            priority.add(el);
+        if(size.getAndIncrement() == 0)
+            drain();
+    }
+
+    /** Only ever run by a single thread at a time */
+    protected void drain() {
+        for(;;) {
+            T el=priority.poll();
+            if(el == null) { // cannot be null: an element is always added before size is incremented
+                el=queue.poll();
+                // priority elements sent from now on are written after el, as this thread is the only writer
+                if(overtakable != null && !overtakable.test(el))
+                    barriers.decrementAndGet();
+            }
+            write(el);
+            int remaining=size.decrementAndGet();
+            if(waiters > 0) { // a producer increments waiters before it checks size, so no wakeup can be missed
+                synchronized(lock) {
+                    lock.notifyAll();
+                }
+            }
+            if(remaining == 0)
+                return;
+        }
+    }
+
+    /** Writes an element on the caller's thread; the lock makes sure only one thread at a time writes */
+    protected void writeDirect(T el) {
+        synchronized(write_lock) {
+            write(el);
+        }
+    }
+
+    protected void write(T el) {
+        try {
+            writer.accept(el);
+        }
+        catch(Throwable t) {
+            log.log(Level.WARNING, "failed writing " + el, t);
+        }
+    }
+
+    protected void waitForSpace() {
+        long deadline=max_block_time > 0? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(max_block_time) : 0;
+        synchronized(lock) {
+            waiters++;
+            try {
+                while(size.get() >= capacity) {
+                    if(deadline == 0) {
+                        lock.wait();
+                        continue;
+                    }
+                    long remaining=TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if(remaining <= 0)
+                        break;
+                    lock.wait(remaining);
+                }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                waiters--;
+            }
+        }
+    }
+}
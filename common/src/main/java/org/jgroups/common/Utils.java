@@ -1,10 +1,15 @@
 package org.jgroups.common;
 
 import com.google.protobuf.Any;
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Int32Value;
 import com.google.protobuf.StringValue;
+import com.google.protobuf.UnsafeByteOperations;
 import org.jgroups.demos.DemoRequest;
 import org.jgroups.demos.DemoResponse;
+import org.jgroups.upgrade_server.Address;
+import org.jgroups.upgrade_server.UUID;
 
 import java.io.*;
 import java.net.MalformedURLException;
@@ -26,6 +31,13 @@ public class Utils {
 
     public static final ByteArray NULL_BUFFER=new ByteArray(new byte[]{TYPE_NULL});
 
+    // the values of Message.Flag.OOB and Message.Flag.INTERNAL (the latter only exists in JGroups 3.6 and 4)
+    public static final int       OOB=1, INTERNAL=1 << 9;
+    // not a JGroups flag (those are shorts): the sender delivered the multicast locally (Features.LOCAL_LOOPBACK)
+    public static final int       LOCAL_LOOPBACK=1 << 16;
+    // not a JGroups flag: the sender multicast the message to its local cluster itself (Features.SUB_CLUSTER)
+    public static final int       SUB_CLUSTER=1 << 17;
+
 
     public static ByteArray intToBuffer(int n) {
        return _intToBuffer(n, TYPE_INT);
@@ -36,6 +48,39 @@ public class Utils {
     }
 
 
+    /**
+     * True if the message flags have OOB or INTERNAL set. Such messages are sent, relayed and delivered on a priority
+     * lane which bypasses the queues of regular messages, and are therefore not ordered relative to other messages
+     */
+    public static boolean isPriority(int flags) {
+        return (flags & (OOB | INTERNAL)) != 0;
+    }
+
+    /**
+     * Returns the identity of an address: its UUID (the UUID of a SiteUUID), or the logical name if it has no UUID.
+     * Unlike equals(), this ignores the logical name of addresses that have a UUID
+     */
+    public static Object key(Address addr) {
+        UUID uuid=addr.hasUuid()? addr.getUuid() : addr.hasSiteUuid()? addr.getSiteUuid().getUuid() : null;
+        return uuid != null? new java.util.UUID(uuid.getMostSig(), uuid.getLeastSig()) : addr.getName();
+    }
+
+    /**
+     * Returns the contents of a ByteString without copying them if the ByteString is backed by a single array, e.g.
+     * when it was parsed from a byte[] or created with {@link UnsafeByteOperations#unsafeWrap(byte[])}, or a copy
+     * otherwise. The returned array must not be modified
+     */
+    public static ByteArray toByteArray(ByteString bs) {
+        ArrayOutput out=new ArrayOutput();
+        try {
+            UnsafeByteOperations.unsafeWriteTo(bs, out);
+        }
+        catch(IOException e) { // cannot happen: ArrayOutput doesn't throw exceptions
+            out.array=null;
+        }
+        return out.array != null? out.array : new ByteArray(bs.toByteArray());
+    }
+
     public static void sleep(long time_ms) {
         try {
             Thread.sleep(time_ms);
@@ -240,4 +285,30 @@ public class Utils {
             throw new UnsupportedOperationException(String.format("type %d not supported", type));
         }
     }
+
+    /** Captures the backing array of a ByteString which writes itself as a single (lazy) array */
+    protected static class ArrayOutput extends ByteOutput {
+        protected ByteArray array;
+        protected boolean   copy; // the bytes cannot be referenced, or consist of more than one chunk
+
+        public void write(byte value)                          {copy=true; array=null;}
+        public void write(byte[] value, int offset, int length) {copy=true; array=null;}
+        public void write(ByteBuffer value)                    {copy=true; array=null;}
+
+        public void writeLazy(byte[] value, int offset, int length) {
+            if(copy || array != null) { // a rope with more than one chunk
+                copy=true;
+                array=null;
+                return;
+            }
+            array=new ByteArray(value, offset, length);
+        }
+
+        public void writeLazy(ByteBuffer value) {
+            if(value.hasArray() && !value.isReadOnly())
+                writeLazy(value.array(), value.arrayOffset() + value.position(), value.remaining());
+            else
+                write(value);
+        }
+    }
 }
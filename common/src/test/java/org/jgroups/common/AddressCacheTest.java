@@ -0,0 +1,73 @@
+package org.jgroups.common;
+
+import org.jgroups.upgrade_server.Address;
+import org.jgroups.upgrade_server.UUID;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests {@link AddressCache}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class AddressCacheTest {
+
+    public void testConversionIsCachedInBothDirections() {
+        AddressCache<String> cache=new AddressCache<>(10);
+        Address a=cache.toProtobuf("A", AddressCacheTest::toProtobuf);
+        assert cache.misses() == 1 && cache.hits() == 0;
+        assert cache.toProtobuf("A", AddressCacheTest::toProtobuf) == a;
+        assert cache.fromProtobuf(toProtobuf("A"), AddressCacheTest::fail).equals("A");
+        assert cache.hits() == 2 && cache.misses() == 1;
+        assert cache.size() == 1;
+    }
+
+    /** When the cache is full, a conversion which has not been used since it was added is evicted */
+    public void testEviction() {
+        AddressCache<String> cache=new AddressCache<>(2);
+        for(String s: Arrays.asList("A", "B"))
+            cache.toProtobuf(s, AddressCacheTest::toProtobuf);
+        cache.toProtobuf("A", AddressCacheTest::fail);
+        cache.toProtobuf("C", AddressCacheTest::toProtobuf);
+        assert cache.size() == 2 && cache.evictions() >= 1;
+        cache.toProtobuf("A", AddressCacheTest::fail);
+        cache.toProtobuf("C", AddressCacheTest::fail);
+        assert cache.fromProtobuf(toProtobuf("C"), AddressCacheTest::fail).equals("C");
+        cache.toProtobuf("B", AddressCacheTest::toProtobuf);
+        assert cache.misses() == 4 && cache.size() == 2;
+    }
+
+    /** New conversions are still cached when the addresses change more often than views are installed */
+    public void testChurn() {
+        AddressCache<String> cache=new AddressCache<>(10);
+        for(int i=0; i < 100; i++) {
+            String addr=String.valueOf(i);
+            cache.toProtobuf(addr, AddressCacheTest::toProtobuf);
+            assert cache.toProtobuf(addr, AddressCacheTest::fail).getName().equals(addr);
+        }
+        assert cache.size() <= 10 && cache.hits() == 100 && cache.misses() == 100;
+    }
+
+    public void testRetainAll() {
+        AddressCache<String> cache=new AddressCache<>(10);
+        for(String s: Arrays.asList("A", "B", "C"))
+            cache.fromProtobuf(toProtobuf(s), a -> a.getName());
+        cache.retainAll(Collections.singletonList("B"));
+        assert cache.size() == 1;
+        assert cache.toProtobuf("B", AddressCacheTest::fail).getName().equals("B");
+        cache.fromProtobuf(toProtobuf("A"), a -> a.getName());
+        assert cache.misses() == 4;
+    }
+
+    protected static Address toProtobuf(String name) {
+        return Address.newBuilder().setName(name)
+          .setUuid(UUID.newBuilder().setMostSig(name.hashCode()).setLeastSig(name.length())).build();
+    }
+
+    protected static <T,R> R fail(T arg) {
+        throw new AssertionError("conversion of " + arg + " should have been cached");
+    }
+}
@@ -0,0 +1,90 @@
+package org.jgroups.common;
+
+import com.google.protobuf.ByteString;
+import org.jgroups.upgrade_server.Message;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Tests {@link Compressor}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class CompressorTest {
+    protected static final byte[] PAYLOAD=payload("{\"key\": \"user-%d\", \"value\": \"some value\", \"version\": %d}", 20);
+
+    public void testCompressAndDecompress() throws Exception {
+        Compressor c=new Compressor().threshold(100);
+        Message msg=Message.newBuilder().setClusterName("cl").setPayload(ByteString.copyFrom(PAYLOAD)).build();
+        Message compressed=c.compress(msg);
+        assert compressed.getUncompressedSize() == PAYLOAD.length;
+        assert compressed.getPayload().size() < PAYLOAD.length;
+        Message decompressed=c.decompress(compressed);
+        assert decompressed.equals(msg);
+        assert c.compressed() == 1 && c.decompressed() == 1 && c.ratio() < 1;
+    }
+
+    public void testThreshold() {
+        Compressor c=new Compressor().threshold(PAYLOAD.length + 1);
+        Message msg=Message.newBuilder().setPayload(ByteString.copyFrom(PAYLOAD)).build();
+        assert c.compress(msg) == msg;
+        assert c.compressed() == 0;
+    }
+
+    /** Random data cannot be compressed, so the payload is sent uncompressed */
+    public void testNotSmaller() {
+        byte[] random=new byte[1000];
+        new java.util.Random(42).nextBytes(random);
+        Compressor c=new Compressor().threshold(1);
+        Message msg=Message.newBuilder().setPayload(ByteString.copyFrom(random)).build();
+        assert c.compress(msg) == msg;
+        assert c.notCompressed() == 1;
+    }
+
+    /** A payload whose compressed size exceeds the deflater's output buffer is compressed in chunks */
+    public void testLargePayload() throws Exception {
+        byte[] large=new byte[64 * 1024], random=new byte[20 * 1024];
+        new java.util.Random(42).nextBytes(large);
+        Arrays.fill(large, random.length, large.length, (byte)'x'); // only the first 20K are random
+        System.arraycopy(large, 0, random, 0, random.length);
+        Compressor c=new Compressor().threshold(1);
+        ByteString compressed=c.compress(ByteString.copyFrom(large));
+        assert compressed != null && compressed.size() > Compressor.BUF_SIZE && compressed.size() < large.length;
+        assert Arrays.equals(c.decompress(compressed, large.length).toByteArray(), large);
+        assert c.compress(ByteString.copyFrom(random)) == null;
+        assert c.compressed() == 1 && c.notCompressed() == 1;
+    }
+
+    public void testDictionary() throws Exception {
+        DictionaryTrainer trainer=new DictionaryTrainer().maxSize(1024);
+        for(int i=0; i < 100; i++)
+            trainer.add(payload("{\"key\": \"user-%d\", \"value\": \"some value\", \"version\": %d}", 1, i));
+        byte[] dict=trainer.train();
+        byte[] sample=payload("{\"key\": \"user-%d\", \"value\": \"some value\", \"version\": %d}", 1, 500);
+        Compressor with=new Compressor().threshold(1).dictionary(dict), without=new Compressor().threshold(1);
+        ByteString compressed=with.compress(ByteString.copyFrom(sample));
+        ByteString plain=without.compress(ByteString.copyFrom(sample));
+        assert compressed != null && (plain == null || compressed.size() < plain.size());
+        assert Arrays.equals(with.decompress(compressed, sample.length).toByteArray(), sample);
+        try {
+            without.decompress(compressed, sample.length);
+            assert false : "decompression without the dictionary should have failed";
+        }
+        catch(DataFormatException expected) {
+        }
+    }
+
+    protected static byte[] payload(String format, int num) {
+        return payload(format, num, 0);
+    }
+
+    protected static byte[] payload(String format, int num, int offset) {
+        StringBuilder sb=new StringBuilder();
+        for(int i=offset; i < offset + num; i++)
+            sb.append(String.format(format, i, i * 7));
+        return sb.toString().getBytes();
+    }
+}
@@ -0,0 +1,106 @@
+package org.jgroups.common;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link DeliveryPool}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class DeliveryPoolTest {
+    protected static final int NUM_SENDERS=5, NUM_MSGS=2_000;
+
+    public void testPerSenderOrdering() throws Exception {
+        DeliveryPool pool=new DeliveryPool(4, false).start();
+        try {
+            List<List<Integer>> delivered=new ArrayList<>(NUM_SENDERS);
+            AtomicInteger[] in_delivery=new AtomicInteger[NUM_SENDERS];
+            AtomicInteger overlaps=new AtomicInteger();
+            CountDownLatch done=new CountDownLatch(NUM_SENDERS * NUM_MSGS);
+            for(int i=0; i < NUM_SENDERS; i++) {
+                delivered.add(Collections.synchronizedList(new ArrayList<>(NUM_MSGS)));
+                in_delivery[i]=new AtomicInteger();
+            }
+            Thread[] senders=new Thread[NUM_SENDERS];
+            for(int i=0; i < NUM_SENDERS; i++) {
+                final int sender=i;
+                senders[i]=new Thread(() -> {
+                    for(int seqno=1; seqno <= NUM_MSGS; seqno++) {
+                        final int s=seqno;
+                        pool.deliver("sender-" + sender, false, 1, () -> {
+                            if(in_delivery[sender].incrementAndGet() > 1)
+                                overlaps.incrementAndGet();
+                            delivered.get(sender).add(s);
+                            in_delivery[sender].decrementAndGet();
+                            done.countDown();
+                        });
+                    }
+                });
+                senders[i].start();
+            }
+            for(Thread t: senders)
+                t.join();
+            assert done.await(10, TimeUnit.SECONDS) : String.format("%d messages not delivered", done.getCount());
+            assert overlaps.get() == 0 : String.format("%d messages delivered concurrently with the same sender", overlaps.get());
+            for(List<Integer> list: delivered) {
+                assert list.size() == NUM_MSGS;
+                for(int i=0; i < NUM_MSGS; i++)
+                    assert list.get(i) == i + 1 : String.format("expected %d but got %d", i + 1, list.get(i));
+            }
+            waitForSize(pool, 0);
+            assert pool.size() == 0;
+        }
+        finally {
+            pool.stop();
+        }
+    }
+
+    /** A blocked delivery delays subsequent messages from the same sender only */
+    public void testSlowSenderDoesNotBlockOthers() throws Exception {
+        DeliveryPool pool=new DeliveryPool(2, false).start();
+        CountDownLatch blocked=new CountDownLatch(1);
+        try {
+            AtomicInteger a_delivered=new AtomicInteger();
+            CountDownLatch b_done=new CountDownLatch(10), oob_done=new CountDownLatch(1);
+            pool.deliver("A", false, 1, () -> await(blocked));
+            pool.deliver("A", false, 1, a_delivered::incrementAndGet);
+            for(int i=0; i < 10; i++)
+                pool.deliver("B", false, 1, b_done::countDown);
+            pool.deliver("A", true, 1, oob_done::countDown);
+            assert b_done.await(5, TimeUnit.SECONDS);
+            assert oob_done.await(5, TimeUnit.SECONDS);
+            waitForSize(pool, 2);
+            assert a_delivered.get() == 0 && pool.size() == 2;
+            blocked.countDown();
+            waitForSize(pool, 0);
+            assert a_delivered.get() == 1 && pool.size() == 0;
+        }
+        finally {
+            blocked.countDown();
+            pool.stop();
+        }
+    }
+
+    /** The count of queued messages is decremented after a task has run, so it may lag behind the latches */
+    protected static void waitForSize(DeliveryPool pool, int expected) throws InterruptedException {
+        for(int i=0; i < 100 && pool.size() != expected; i++)
+            Thread.sleep(50);
+    }
+
+    protected static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
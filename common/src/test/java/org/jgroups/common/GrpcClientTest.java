@@ -0,0 +1,71 @@
+package org.jgroups.common;
+
+import org.jgroups.upgrade_server.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link GrpcClient}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class GrpcClientTest {
+    protected static final Address A=addr("A", 1), B=addr("B", 2);
+
+    /** A message in compact form which arrives (on a data stream) before its view is held until the view arrives */
+    public void testMessageBeforeView() {
+        List<Message> msgs=new ArrayList<>();
+        GrpcClient client=client(msgs);
+        GrpcClient.DataStream ds=client.data[0];
+        client.onNext(view(1, A));
+
+        ds.onNext(msg(2)); // B is only in view 2
+        ds.onNext(msg(1)); // held too, so that the messages are not reordered
+        assert msgs.isEmpty();
+
+        client.onNext(view(2, A, B));
+        assert msgs.size() == 2;
+        assert msgs.get(0).getSenderId() == 2 && msgs.get(1).getSenderId() == 1;
+
+        ds.onNext(msg(2));
+        assert msgs.size() == 3;
+    }
+
+    /** A message whose view doesn't arrive within view_wait_time ms is dropped */
+    public void testMessageWithoutViewIsDropped() {
+        List<Message> msgs=new ArrayList<>();
+        GrpcClient client=client(msgs).setViewWaitTime(0);
+        GrpcClient.DataStream ds=client.data[0];
+        client.onNext(view(1, A));
+        ds.onNext(msg(2));
+        ds.onNext(msg(1));
+        assert msgs.size() == 1 && msgs.get(0).getSenderId() == 1;
+    }
+
+    protected static GrpcClient client(List<Message> msgs) {
+        GrpcClient client=new GrpcClient().addMessageHandler(msgs::add);
+        client.negotiated=Features.COMPACT;
+        client.data=new GrpcClient.DataStream[]{client.new DataStream()};
+        return client;
+    }
+
+    protected static Response view(long view_id, Address... mbrs) {
+        View.Builder vb=View.newBuilder().setClusterId(1)
+          .setViewId(ViewId.newBuilder().setCreator(mbrs[0]).setId(view_id)).addAllMember(Arrays.asList(mbrs));
+        for(Address mbr: mbrs)
+            vb.addMemberId((int)mbr.getUuid().getLeastSig());
+        return Response.newBuilder().setView(vb).build();
+    }
+
+    protected static Response msg(int sender_id) {
+        return Response.newBuilder().setMessage(Message.newBuilder().setClusterId(1).setSenderId(sender_id)).build();
+    }
+
+    protected static Address addr(String name, long id) {
+        return Address.newBuilder().setName(name).setUuid(UUID.newBuilder().setMostSig(id).setLeastSig(id)).build();
+    }
+}
@@ -0,0 +1,58 @@
+package org.jgroups.common;
+
+import com.google.protobuf.ByteString;
+import org.jgroups.upgrade_server.Message;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link MessageBundler}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class MessageBundlerTest {
+    protected static final int PARTITIONS=4, NUM_MSGS=1000;
+
+    /** A batch only contains messages of its partition, in the order in which they were sent */
+    public void testPartitions() throws Exception {
+        List<List<Integer>> received=new ArrayList<>(PARTITIONS);
+        for(int i=0; i < PARTITIONS; i++)
+            received.add(Collections.synchronizedList(new ArrayList<>()));
+        AtomicInteger errors=new AtomicInteger(), count=new AtomicInteger();
+        MessageBundler bundler=new MessageBundler(NUM_MSGS, PARTITIONS, (req, partition) -> {
+            List<Message> msgs=req.hasBatch()? req.getBatch().getMessagesList()
+              : Collections.singletonList(req.getMessage());
+            for(Message msg: msgs) {
+                int num=msg.getPayload().byteAt(0);
+                if(num % PARTITIONS != partition)
+                    errors.incrementAndGet();
+                received.get(partition).add(num);
+                count.incrementAndGet();
+            }
+        }).setMaxSize(1000);
+        bundler.start();
+        try {
+            for(int i=0; i < NUM_MSGS; i++) {
+                int num=i % 100;
+                bundler.send(Message.newBuilder().setPayload(ByteString.copyFrom(new byte[]{(byte)num})).build(), num);
+            }
+            for(int i=0; i < 100 && count.get() < NUM_MSGS; i++)
+                Thread.sleep(50);
+        }
+        finally {
+            bundler.stop();
+        }
+        assert count.get() == NUM_MSGS && errors.get() == 0;
+        for(int p=0; p < PARTITIONS; p++) {
+            List<Integer> list=received.get(p);
+            for(int i=0; i < list.size(); i++) // every partition receives the sequence p, p+4, p+8, ... repeatedly
+                assert list.get(i) == (p + i * PARTITIONS) % 100;
+        }
+        assert bundler.numBatches() > 0;
+    }
+}
@@ -0,0 +1,106 @@
+package org.jgroups.common;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import org.jgroups.upgrade_server.Address;
+import org.jgroups.upgrade_server.Message;
+import org.jgroups.upgrade_server.Request;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * Measures the send throughput of {@link GrpcClient} for a number of sender threads: requests are either written to
+ * the stream while holding a lock (the default), or queued ({@link SendQueue} with queued=true, UPGRADE.use_send_queue).
+ * Writing to the stream is simulated by serializing the request into a buffer, which is what gRPC does on the caller's
+ * thread in onNext().
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class SendBenchmark {
+    protected int[]  thread_counts={1, 2, 4, 8, 16, 32, 64};
+    protected int    num_requests=2_000_000, payload_size=100;
+    protected byte[] buf;
+    protected long   written;
+
+    protected void start() throws InterruptedException {
+        Request req=Request.newBuilder().setMessage(Message.newBuilder().setClusterName("bench")
+          .setSender(Address.newBuilder().setName("A")).setPayload(ByteString.copyFrom(new byte[payload_size]))).build();
+        buf=new byte[req.getSerializedSize()];
+        System.out.printf("-- %,d requests of %d bytes\n", num_requests, req.getSerializedSize());
+        for(int num_threads: thread_counts) {
+            // warmup
+            run(req, num_threads, new SendQueue<>(this::write, 0, 0, false)::send);
+            run(req, num_threads, new SendQueue<>(this::write, 0, 0, true)::send);
+            long sync=run(req, num_threads, new SendQueue<>(this::write, 0, 0, false)::send);
+            long queue=run(req, num_threads, new SendQueue<>(this::write, 0, 0, true)::send);
+            System.out.printf("%3d threads: lock: %,12d reqs/sec, send queue: %,12d reqs/sec\n",
+                              num_threads, sync, queue);
+        }
+    }
+
+    /** Returns the number of requests per second */
+    protected long run(Request req, int num_threads, Consumer<Request> sender) throws InterruptedException {
+        CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[num_threads];
+        int per_thread=num_requests / num_threads;
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread(() -> {
+                try {
+                    latch.await();
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                for(int j=0; j < per_thread; j++)
+                    sender.accept(req);
+            });
+            threads[i].start();
+        }
+        long start=System.nanoTime();
+        latch.countDown();
+        for(Thread t: threads)
+            t.join();
+        long time=System.nanoTime() - start;
+        return (long)(per_thread * num_threads / (time / 1_000_000_000.0));
+    }
+
+    /** Simulates StreamObserver.onNext(): not thread-safe, only called by one thread at a time */
+    protected void write(Request req) {
+        try {
+            CodedOutputStream out=CodedOutputStream.newInstance(buf);
+            req.writeTo(out);
+            written+=out.getTotalBytesWritten();
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        SendBenchmark b=new SendBenchmark();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-threads")) {
+                String[] counts=args[++i].split(",");
+                b.thread_counts=new int[counts.length];
+                for(int j=0; j < counts.length; j++)
+                    b.thread_counts[j]=Integer.parseInt(counts[j].trim());
+                continue;
+            }
+            if(args[i].equals("-requests")) {
+                b.num_requests=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-payload_size")) {
+                b.payload_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("SendBenchmark [-threads <comma-separated thread counts>] [-requests <num>] " +
+                                 "[-payload_size <bytes>]");
+            return;
+        }
+        b.start();
+    }
+}
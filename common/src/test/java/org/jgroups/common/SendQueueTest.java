@@ -0,0 +1,106 @@
+package org.jgroups.common;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link SendQueue}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class SendQueueTest {
+    protected static final int NUM_SENDERS=8, NUM_MSGS=10_000;
+
+    public void testSingleWriterQueued() throws InterruptedException {
+        testSingleWriter(true);
+    }
+
+    public void testSingleWriterDirect() throws InterruptedException {
+        testSingleWriter(false);
+    }
+
+    /** Elements of the same sender are written in order, and never concurrently */
+    protected static void testSingleWriter(boolean queued) throws InterruptedException {
+        AtomicInteger writers=new AtomicInteger(), overlaps=new AtomicInteger();
+        List<int[]> written=new ArrayList<>(); // only accessed by the writer
+        SendQueue<int[]> q=new SendQueue<>(el -> {
+            if(writers.incrementAndGet() > 1)
+                overlaps.incrementAndGet();
+            written.add(el);
+            writers.decrementAndGet();
+        }, 0, 0, queued);
+        Thread[] senders=new Thread[NUM_SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            final int sender=i;
+            senders[i]=new Thread(() -> {
+                for(int j=1; j <= NUM_MSGS; j++)
+                    q.send(new int[]{sender, j});
+            });
+            senders[i].start();
+        }
+        for(Thread t: senders)
+            t.join();
+        assert overlaps.get() == 0;
+        assert q.size() == 0 && written.size() == NUM_SENDERS * NUM_MSGS;
+        int[] last=new int[NUM_SENDERS];
+        for(int[] el: written) {
+            assert el[1] == last[el[0]] + 1;
+            last[el[0]]=el[1];
+        }
+    }
+
+    /** Priority elements overtake queued regular messages */
+    public void testPriorityOvertakesMessages() {
+        List<String> written=new ArrayList<>();
+        queue(written, "first", "msg-1", "msg-2", "prio").send("first");
+        assert written.equals(Arrays.asList("first", "prio", "msg-1", "msg-2")) : written;
+    }
+
+    /** Priority elements don't overtake a queued control element (e.g. a hello or join request) */
+    public void testPriorityDoesNotOvertakeControlElements() {
+        List<String> written=new ArrayList<>();
+        queue(written, "first", "msg-1", "hello", "msg-2", "prio").send("first");
+        assert written.equals(Arrays.asList("first", "msg-1", "hello", "msg-2", "prio")) : written;
+
+        // once the control element is being written, priority elements overtake messages again
+        written.clear();
+        queue(written, "hello", "msg-1", "prio").send("hello");
+        assert written.equals(Arrays.asList("hello", "prio", "msg-1")) : written;
+    }
+
+    /**
+     * Creates a queue in which only messages ("msg-*") can be overtaken. When the writer writes trigger, it sends the
+     * given elements, which are therefore queued as if sent concurrently ("prio*" elements are sent as priority elements)
+     */
+    protected static SendQueue<String> queue(List<String> written, String trigger, String... elements) {
+        List<SendQueue<String>> ref=new ArrayList<>(1);
+        SendQueue<String> q=new SendQueue<String>(el -> {
+            written.add(el);
+            if(el.equals(trigger)) {
+                for(String e: elements) {
+                    if(e.startsWith("prio"))
+                        ref.get(0).sendPriority(e);
+                    else
+                        ref.get(0).send(e);
+                }
+            }
+        }, 0, 0, true).overtakable(el -> el.startsWith("msg"));
+        ref.add(q);
+        return q;
+    }
+
+    public void testDirectWritesOnCallersThread() {
+        List<Thread> threads=new ArrayList<>();
+        SendQueue<String> q=new SendQueue<>(el -> threads.add(Thread.currentThread()), 0, 0, false);
+        q.send("a");
+        q.sendPriority("b");
+        assert threads.equals(Collections.nCopies(2, Thread.currentThread()));
+        assert q.size() == 0;
+    }
+}
@@ -0,0 +1,40 @@
+package org.jgroups.common;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.jgroups.upgrade_server.Message;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests {@link Utils}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class UtilsTest {
+
+    public void testToByteArrayWithoutCopy() {
+        byte[] array="hello world".getBytes();
+        ByteArray buf=Utils.toByteArray(UnsafeByteOperations.unsafeWrap(array, 6, 5));
+        assert buf.getArray() == array;
+        assert buf.getOffset() == 6 && buf.getLength() == 5;
+    }
+
+    public void testToByteArrayOfParsedMessage() throws Exception {
+        byte[] payload="hello world".getBytes();
+        Message msg=Message.newBuilder().setClusterName("cl").setPayload(ByteString.copyFrom(payload)).build();
+        ByteArray buf=Utils.toByteArray(Message.parseFrom(msg.toByteArray()).getPayload());
+        assert Arrays.equals(Arrays.copyOfRange(buf.getArray(), buf.getOffset(), buf.getOffset() + buf.getLength()),
+                             payload);
+    }
+
+    /** A rope consists of more than one array, so it has to be copied */
+    public void testToByteArrayOfRope() {
+        ByteString rope=ByteString.copyFrom("hello ".getBytes()).concat(ByteString.copyFrom("world".getBytes()));
+        ByteArray buf=Utils.toByteArray(rope);
+        assert buf.getOffset() == 0;
+        assert Arrays.equals(buf.getArray(), "hello world".getBytes());
+    }
+}
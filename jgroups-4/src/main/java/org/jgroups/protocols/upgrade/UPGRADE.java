@@ -1,11 +1,13 @@
 package org.jgroups.protocols.upgrade;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import org.jgroups.Message;
 import org.jgroups.annotations.MBean;
 import org.jgroups.base.UpgradeBase;
 import org.jgroups.blocks.RequestCorrelator;
 import org.jgroups.common.ByteArray;
+import org.jgroups.common.Utils;
 import org.jgroups.protocols.relay.RELAY2;
 import org.jgroups.upgrade_server.Headers;
 import org.jgroups.upgrade_server.RelayHeader;
@@ -24,12 +26,13 @@ import org.jgroups.util.Streamable;
 public class UPGRADE extends UpgradeBase {
 
 
-    protected org.jgroups.upgrade_server.Message jgroupsMessageToProtobufMessage(String cluster, Message jg_msg) throws Exception {
+    protected org.jgroups.upgrade_server.Message jgroupsMessageToProtobufMessage(String cluster, Message jg_msg, int marker)
+      throws Exception {
         if(jg_msg == null)
             return null;
 
         org.jgroups.upgrade_server.Message.Builder builder=msgBuilder(cluster, jg_msg.getSrc(), jg_msg.getDest(),
-                                                                      jg_msg.getFlags(), null);
+                                                                      jg_msg.getFlags() | marker, null);
         RequestCorrelator.Header hdr=jg_msg.getHeader(REQ_ID);
         RELAY2.Relay2Header relay_hdr=jg_msg.getHeader(RELAY2_ID);
         boolean is_rsp=setHeaders(builder, hdr, relay_hdr);
@@ -48,8 +51,8 @@ public class UPGRADE extends UpgradeBase {
         } else {
             payload = payloadFromJGroupsMessage(jg_msg);
         }
-        if(payload != null)
-            builder.setPayload(ByteString.copyFrom(payload.getBytes(), payload.getOffset(), payload.getLength()));
+        if(payload != null) // the payload must not be changed after sending, so it can be referenced rather than copied
+            builder.setPayload(UnsafeByteOperations.unsafeWrap(payload.getArray(), payload.getOffset(), payload.getLength()));
         return builder.build();
     }
 
@@ -58,11 +61,9 @@ public class UPGRADE extends UpgradeBase {
     protected Message protobufMessageToJGroupsMessage(org.jgroups.upgrade_server.Message msg) throws Exception {
         ByteString payload=msg.getPayload();
         Message jg_msg=new Message();
-        if(msg.hasDestination())
-            jg_msg.setDest(protobufAddressToJGroupsAddress(msg.getDestination()));
-        if(msg.hasSender())
-            jg_msg.setSrc(protobufAddressToJGroupsAddress(msg.getSender()));
-        jg_msg.setFlag(jg_msg.getFlags());
+        jg_msg.setDest(destination(msg));
+        jg_msg.setSrc(sender(msg));
+        jg_msg.setFlag((short)msg.getFlags());
         boolean is_rsp=false;
         if(msg.hasHeaders()) {
             Headers hdrs=msg.getHeaders();
@@ -82,20 +83,20 @@ public class UPGRADE extends UpgradeBase {
             return jg_msg;
         }
 
-        byte[] tmp = payload.toByteArray();
+        ByteArray tmp = Utils.toByteArray(payload); // refers to the payload's array if possible
         if (marshaller != null) {
             if (is_rsp) {
-                Object obj = marshaller.objectFromBuffer(tmp, 0, tmp.length);
+                Object obj = marshaller.objectFromBuffer(tmp.getArray(), tmp.getOffset(), tmp.getLength());
                 jg_msg.setObject(obj);
             } else if (rpcs) {
-                org.jgroups.blocks.MethodCall obj = (org.jgroups.blocks.MethodCall) marshaller.objectFromBuffer(tmp, 0, tmp.length);
+                org.jgroups.blocks.MethodCall obj = (org.jgroups.blocks.MethodCall) marshaller.objectFromBuffer(tmp.getArray(), tmp.getOffset(), tmp.getLength());
                 Buffer buf = methodCallToBuffer(obj, null);
                 jg_msg.setBuffer(buf);
             } else {
-                jg_msg.setBuffer(tmp);
+                jg_msg.setBuffer(tmp.getArray(), tmp.getOffset(), tmp.getLength());
             }
         } else {
-            jg_msg.setBuffer(tmp);
+            jg_msg.setBuffer(tmp.getArray(), tmp.getOffset(), tmp.getLength());
         }
 
         return jg_msg;
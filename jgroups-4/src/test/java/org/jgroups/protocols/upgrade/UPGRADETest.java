@@ -0,0 +1,62 @@
+package org.jgroups.protocols.upgrade;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.UUID;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link UPGRADE}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class UPGRADETest {
+
+    /** Relayed OOB and INTERNAL messages keep their flags, and are passed up in batches with the matching mode */
+    public void testBatchModes() {
+        List<MessageBatch> batches=new ArrayList<>();
+        Upgrade upgrade=new Upgrade("demo");
+        upgrade.setUpProtocol(new Protocol() {
+            public void up(MessageBatch batch) {
+                batches.add(batch);
+            }
+        });
+        org.jgroups.upgrade_server.Address sender=upgrade.toProtobuf(UUID.randomUUID());
+        short[] flags={0, Message.Flag.OOB.value(), Message.Flag.INTERNAL.value(), Message.Flag.OOB.value(), 0};
+        org.jgroups.upgrade_server.MessageBatch.Builder mb=org.jgroups.upgrade_server.MessageBatch.newBuilder();
+        for(short f: flags)
+            mb.addMessages(org.jgroups.upgrade_server.Message.newBuilder().setClusterName("demo").setSender(sender)
+                             .setFlags(f));
+        upgrade.receive(mb.build());
+
+        assert batches.size() == 3;
+        assert batches.get(0).mode() == MessageBatch.Mode.REG && batches.get(0).size() == 2;
+        assert batches.get(1).mode() == MessageBatch.Mode.OOB && batches.get(1).size() == 2;
+        assert batches.get(2).mode() == MessageBatch.Mode.INTERNAL && batches.get(2).size() == 1;
+        for(Message msg: batches.get(1))
+            assert msg.isFlagSet(Message.Flag.OOB);
+        for(Message msg: batches.get(2))
+            assert msg.isFlagSet(Message.Flag.INTERNAL);
+    }
+
+    /** Exposes the methods of UpgradeBase (different package) to the test */
+    protected static class Upgrade extends UPGRADE {
+        protected Upgrade(String cluster) {
+            this.cluster=cluster;
+        }
+
+        protected org.jgroups.upgrade_server.Address toProtobuf(Address addr) {
+            return jgroupsAddressToProtobufAddress(addr);
+        }
+
+        protected void receive(org.jgroups.upgrade_server.MessageBatch mb) {
+            handleBatch(mb);
+        }
+    }
+}
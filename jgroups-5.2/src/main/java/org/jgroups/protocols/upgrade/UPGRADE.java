@@ -1,60 +1,118 @@
 package org.jgroups.protocols.upgrade;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import org.jgroups.BytesMessage;
+import org.jgroups.CompositeMessage;
+import org.jgroups.Global;
 import org.jgroups.Message;
+import org.jgroups.NioMessage;
 import org.jgroups.blocks.RequestCorrelator;
 import org.jgroups.common.ByteArray;
+import org.jgroups.common.Utils;
 import org.jgroups.upgrade_server.*;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.SizeStreamable;
 import org.jgroups.util.Util;
 
+import java.nio.ByteBuffer;
+
 /**
  * Relays application messages to the UpgradeServer (when active). Should be the top protocol in a stack.
  * @author Bela Ban
  * @since  1.0
  */
 public class UPGRADE extends UpgradeBase5_2 {
+    protected static final byte TYPE_STREAMABLE=50; // Util.TYPE_STREAMABLE (private)
+
 
 
-    protected org.jgroups.upgrade_server.Message jgroupsMessageToProtobufMessage(String cluster, Message jg_msg) throws Exception {
+    protected org.jgroups.upgrade_server.Message jgroupsMessageToProtobufMessage(String cluster, Message jg_msg, int marker)
+      throws Exception {
         if(jg_msg == null)
             return null;
 
         Metadata md=Metadata.newBuilder().setMsgType(jg_msg.getType()).build();
         org.jgroups.upgrade_server.Message.Builder builder=msgBuilder(cluster, jg_msg.getSrc(), jg_msg.getDest(),
-                                                                      jg_msg.getFlags(), md);
+                                                                      jg_msg.getFlags() | marker, md);
         RequestCorrelator.Header hdr=jg_msg.getHeader(REQ_ID);
         org.jgroups.protocols.relay.RelayHeader relay_hdr=jg_msg.getHeader(RELAY2_ID);
         boolean is_rsp=setHeaders(builder, hdr, relay_hdr);
 
-        org.jgroups.common.ByteArray payload;
+        ByteString payload;
         if((is_rsp || rpcs) && marshaller != null) {
-            Object obj=jg_msg.getPayload();
-            payload=marshaller.objectToBuffer(obj);
-        }
-        else {
-            if(jg_msg.hasArray())
-                payload=new ByteArray(jg_msg.getArray(), jg_msg.getOffset(), jg_msg.getLength());
-            else {
-                org.jgroups.util.ByteArray pl=jg_msg.hasPayload()? Util.objectToBuffer(jg_msg.getObject()) : null;
-                payload=pl != null? new ByteArray(pl.getArray(), pl.getOffset(), pl.getLength()) : null;
-            }
+            ByteArray buf=marshaller.objectToBuffer(jg_msg.getPayload());
+            payload=buf != null? UnsafeByteOperations.unsafeWrap(buf.getArray(), buf.getOffset(), buf.getLength()) : null;
         }
+        else
+            payload=writePayload(jg_msg);
         if(payload != null)
-            builder.setPayload(ByteString.copyFrom(payload.getBytes(), payload.getOffset(), payload.getLength()));
+            builder.setPayload(payload);
         return builder.build();
     }
 
+    /**
+     * Serializes the payload of a message according to its type. The payload must not be changed after sending, so
+     * arrays are referenced rather than copied. Direct buffers are copied though, as they are often pooled and reused
+     * by the application once send() returns, while the request is written to the stream later. The format is the
+     * same as that of {@link Util#objectToBuffer(Object)} for all types except NioMessages with a direct buffer and
+     * CompositeMessages, which could not be sent before.
+     */
+    protected static ByteString writePayload(Message msg) throws Exception {
+        if(msg.hasArray())
+            return UnsafeByteOperations.unsafeWrap(msg.getArray(), msg.getOffset(), msg.getLength());
+        if(!msg.hasPayload())
+            return null;
+        if(msg instanceof NioMessage) // direct buffer (a heap buffer has an array)
+            return ByteString.copyFrom(((NioMessage)msg).getBuf().duplicate());
+        if(msg instanceof CompositeMessage) {
+            CompositeMessage comp=(CompositeMessage)msg;
+            int size=Global.INT_SIZE;
+            for(Message m: comp)
+                size+=comp.collapse()? m.getLength() : Global.SHORT_SIZE + m.size();
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size);
+            comp.writePayload(out);
+            // a collapsed message is sent as a BytesMessage (the length written by writePayload() is skipped)
+            int offset=comp.collapse()? Global.INT_SIZE : 0;
+            return UnsafeByteOperations.unsafeWrap(out.buffer(), offset, out.position() - offset);
+        }
+        Object obj=msg.getObject();
+        if(obj instanceof SizeStreamable) { // same format as Util.objectToBuffer(), but sized exactly
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(Util.size((SizeStreamable)obj) + 1);
+            out.write(TYPE_STREAMABLE);
+            Util.writeGenericStreamable((SizeStreamable)obj, out);
+            return UnsafeByteOperations.unsafeWrap(out.buffer(), 0, out.position());
+        }
+        org.jgroups.util.ByteArray buf=Util.objectToBuffer(obj);
+        return UnsafeByteOperations.unsafeWrap(buf.getArray(), buf.getOffset(), buf.getLength());
+    }
+
+    /**
+     * Sets the payload of a message created from its type ({@link Metadata#getMsgType()}). The message refers to the
+     * payload's array where possible. A NioMessage gets a heap buffer wrapping the array, as the application may call
+     * getArray() on it, which a read-only buffer doesn't support
+     */
+    protected static void readPayload(Message msg, ByteString payload) throws Exception {
+        ByteArray buf=Utils.toByteArray(payload);
+        if(msg instanceof NioMessage)
+            ((NioMessage)msg).setBuf(ByteBuffer.wrap(buf.getArray(), buf.getOffset(), buf.getLength()));
+        else if(msg.hasArray())
+            msg.setArray(buf.getArray(), buf.getOffset(), buf.getLength());
+        else if(msg instanceof CompositeMessage)
+            msg.readPayload(new ByteArrayDataInputStream(buf.getArray(), buf.getOffset(), buf.getLength()));
+        else
+            msg.setObject(Util.objectFromByteBuffer(buf.getArray(), buf.getOffset(), buf.getLength()));
+    }
+
 
 
     protected Message protobufMessageToJGroupsMessage(org.jgroups.upgrade_server.Message msg) throws Exception {
         ByteString payload=msg.getPayload();
         Message jg_msg=msg.hasMetaData()? getTransport().getMessageFactory().create((short)msg.getMetaData().getMsgType())
           : new BytesMessage();
-        if(msg.hasDestination())
-            jg_msg.setDest(protobufAddressToJGroupsAddress(msg.getDestination()));
-        if(msg.hasSender())
-            jg_msg.setSrc(protobufAddressToJGroupsAddress(msg.getSender()));
+        jg_msg.setDest(destination(msg));
+        jg_msg.setSrc(sender(msg));
         jg_msg.setFlag((short)msg.getFlags(), false);
         boolean is_rsp=false;
         if(msg.hasHeaders()) {
@@ -73,19 +131,13 @@ public class UPGRADE extends UpgradeBase5_2 {
         }
 
         if(!payload.isEmpty()) {
-            byte[] tmp=payload.toByteArray();
             if((is_rsp || rpcs) && marshaller != null) {
-                Object obj=marshaller.objectFromBuffer(tmp, 0, tmp.length);
+                ByteArray tmp=Utils.toByteArray(payload); // refers to the payload's array if possible
+                Object obj=marshaller.objectFromBuffer(tmp.getArray(), tmp.getOffset(), tmp.getLength());
                 jg_msg.setPayload(obj);
             }
-            else {
-                if(jg_msg.hasArray())
-                    jg_msg.setArray(tmp);
-                else {
-                    Object pl=Util.objectFromByteBuffer(tmp);
-                    jg_msg.setObject(pl);
-                }
-            }
+            else
+                readPayload(jg_msg, payload);
         }
         return jg_msg;
     }
@@ -10,9 +10,14 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.blocks.RequestCorrelator;
+import org.jgroups.common.AddressCache;
+import org.jgroups.common.Compressor;
 import org.jgroups.common.ConnectionStatus;
+import org.jgroups.common.Features;
 import org.jgroups.common.GrpcClient;
 import org.jgroups.common.Marshaller;
+import org.jgroups.common.MemberIds;
+import org.jgroups.common.Utils;
 import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.protocols.pbcast.GMS;
 import org.jgroups.protocols.relay.RELAY2;
@@ -21,6 +26,8 @@ import org.jgroups.protocols.relay.SiteUUID;
 import org.jgroups.stack.Protocol;
 import org.jgroups.upgrade_server.ViewId;
 import org.jgroups.upgrade_server.*;
+import org.jgroups.util.AsciiString;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.NameCache;
 
 import java.util.*;
@@ -56,9 +63,83 @@ public abstract class UpgradeBase5_2 extends Protocol {
     @Property(description="Time in ms between trying to reconnect to UpgradeServer (while disconnected)")
     protected long               reconnect_interval=3000;
 
+    @Property(description="Max time (ms) a sender blocks while the connection to the UpgradeServer cannot accept " +
+      "more data (backpressure from the server). 0 disables blocking")
+    protected long               max_block_time;
+
+    @Property(description="Max number of requests queued for sending to the UpgradeServer. When full, senders block " +
+      "for at most max_block_time ms (until space is available if max_block_time is 0). 0 disables the limit")
+    protected int                send_queue_capacity;
+
+    @Property(description="Sends requests to the UpgradeServer through a lock-free queue, written by one sender at a " +
+      "time. If false, senders write to the stream while holding a lock. Only use this if it is faster with the given " +
+      "number of senders and cores; send_queue_capacity only applies if true")
+    protected boolean            use_send_queue;
+
+    @Property(description="Bundles messages sent to the UpgradeServer into batches. Batches are only sent if the " +
+      "UpgradeServer supports them; otherwise the messages are sent one by one")
+    protected boolean            bundling;
+
+    @Property(description="Max number of bytes of a message batch (if bundling is enabled)")
+    protected int                bundler_max_size=64000;
+
+    @Property(description="Max number of messages queued by the bundler before senders block (if bundling is enabled)")
+    protected int                bundler_capacity=16384;
+
+    @Property(description="Number of streams to the UpgradeServer messages are sent and received on (if the server " +
+      "supports separate data streams). Unicasts are sent on the stream selected by their destination and multicasts " +
+      "on the stream selected by the sending thread, so the messages to the same destination are not reordered")
+    protected int                data_streams=1;
+
+    @Property(description="Max number of threads delivering messages received from the UpgradeServer. Messages from " +
+      "the same sender are delivered in order, OOB messages and messages from different senders in parallel. " +
+      "0 delivers all messages on the thread receiving them")
+    protected int                delivery_threads;
+
+    @Property(description="Use virtual threads (if available) to deliver messages (if delivery_threads > 0)")
+    protected boolean            use_virtual_threads;
+
+    @Property(description="Max number of cached address conversions (JGroups <-> protobuf). When full, the least " +
+      "recently used conversions are evicted; the cache is also pruned when a new global view is installed. " +
+      "0 disables the cache")
+    protected int                address_cache_size=1000;
+
+    @Property(description="Sends messages in compact form: the cluster, sender and destination are referred to by " +
+      "ids assigned by the UpgradeServer instead of by name and address. Not used if the server doesn't support it")
+    protected boolean            compact=true;
+
+    @Property(description="Delivers the multicasts sent by this member locally, instead of receiving them back from " +
+      "the UpgradeServer (not done for messages with DONT_LOOPBACK). Unicasts to self are always delivered locally. " +
+      "Not used if the server doesn't support it")
+    protected boolean            local_loopback=true;
+
+    @Property(description="Sends unicasts to members of the local view down the local stack, and multicasts both down " +
+      "the local stack and to the UpgradeServer, which relays them only to the members which are not in the local " +
+      "view. Not used if the server doesn't support it. Off by default, as messages are not ordered across the two " +
+      "paths: when the local view changes, messages to a member switch between the server and the local stack, and " +
+      "the messages still queued on the old path may be delivered after the ones sent on the new path")
+    protected boolean            sub_cluster_routing;
+
+    @Property(description="The name of the sub-cluster (the local cluster) this member is part of, shown by the " +
+      "UpgradeServer. Defaults to the JGroups version")
+    protected String             sub_cluster;
+
+    @Property(description="Min size (in bytes) of a payload to be compressed. Payloads are only compressed if the " +
+      "UpgradeServer supports compression. 0 disables compression")
+    protected int                compression_threshold;
+
+    @Property(description="The compression level (0-9)")
+    protected int                compression_level=1;
+
+    @Property(description="Dictionary (file, URL or resource) used to compress payloads, e.g. created by " +
+      "DictionaryTrainer from captured payloads. All members and the UpgradeServer need to use the same dictionary")
+    protected String             compression_dictionary;
+
     @ManagedAttribute(description="Shows the local view")
     protected View               local_view;
 
+    protected volatile Set<Address> local_members=Collections.emptySet(); // the members of local_view
+
     @ManagedAttribute(description="The global view (provided by the UpgradeServer)")
     protected View               global_view;
 
@@ -72,6 +153,10 @@ public abstract class UpgradeBase5_2 extends Protocol {
 
     protected Marshaller         marshaller;
 
+    protected final AddressCache<Address> addr_cache=new AddressCache<>(address_cache_size);
+
+    protected volatile MemberIds<Address> member_ids; // the ids of the global view, null if not compact
+
     protected static final short REQ_ID=ClassConfigurator.getProtocolId(RequestCorrelator.class);
     protected static final short RELAY2_ID=ClassConfigurator.getProtocolId(RELAY2.class);
 
@@ -98,6 +183,51 @@ public abstract class UpgradeBase5_2 extends Protocol {
         return (T)this;
     }
 
+    @ManagedAttribute(description="Number of requests queued for sending to the UpgradeServer")
+    public int getSendQueueSize() {
+        return client.sendQueueSize();
+    }
+
+    @ManagedAttribute(description="Number of messages received from the UpgradeServer which have not yet been delivered")
+    public int getDeliveryQueueSize() {
+        return client.deliveryQueueSize();
+    }
+
+    @ManagedAttribute(description="Number of address conversions found in the address cache")
+    public long getAddressCacheHits() {
+        return addr_cache.hits();
+    }
+
+    @ManagedAttribute(description="Number of address conversions not found in the address cache")
+    public long getAddressCacheMisses() {
+        return addr_cache.misses();
+    }
+
+    @ManagedAttribute(description="Number of cached address conversions")
+    public int getAddressCacheSize() {
+        return addr_cache.size();
+    }
+
+    @ManagedAttribute(description="The optional features agreed with the UpgradeServer")
+    public String getFeatures() {
+        return Features.print(client.getNegotiatedFeatures());
+    }
+
+    @ManagedAttribute(description="Size of the compressed payloads divided by their original size")
+    public double getCompressionRatio() {
+        return client.compressor().ratio();
+    }
+
+    @ManagedAttribute(description="Number of (de)compressed payloads, compression ratio and avg time")
+    public String getCompressionStats() {
+        return client.compressor().toString();
+    }
+
+    @ManagedAttribute(description="The ids of the cluster and its members (null if messages are not sent in compact form)")
+    public String getMemberIds() {
+        return String.valueOf(member_ids);
+    }
+
     @ManagedAttribute(description="True if the reconnector is running")
     public boolean isReconnecting() {
         return client.reconnectorRunning();
@@ -113,10 +243,27 @@ public abstract class UpgradeBase5_2 extends Protocol {
 
     public void init() throws Exception {
         super.init();
+        addr_cache.maxSize(address_cache_size);
+        if(compact)
+            client.setFeatures(client.getFeatures() | Features.COMPACT);
+        if(local_loopback)
+            client.setFeatures(client.getFeatures() | Features.LOCAL_LOOPBACK);
+        if(sub_cluster_routing)
+            client.setFeatures(client.getFeatures() | Features.SUB_CLUSTER);
+        if(sub_cluster == null || sub_cluster.isEmpty())
+            sub_cluster=Version.printVersion();
+        client.compressor().threshold(compression_threshold).level(compression_level);
+        if(compression_dictionary != null && !compression_dictionary.isEmpty())
+            client.compressor().dictionary(Compressor.readDictionary(compression_dictionary));
         client.setServerAddress(server_address).setServerPort(server_port).setServerCert(server_cert)
           .addViewHandler(this::handleView).addMessageHandler(this::handleMessage)
+          .addBatchHandler(this::handleBatch)
           .setViewResponseHandler(this::handleViewResponse)
           .setReconnectionFunction(this::connect).setReconnectInterval(reconnect_interval)
+          .setMaxBlockTime(max_block_time).setSendQueueCapacity(send_queue_capacity).setUseSendQueue(use_send_queue)
+          .setBundling(bundling).setBundlerMaxSize(bundler_max_size).setBundlerCapacity(bundler_capacity)
+          .setDataStreams(data_streams)
+          .setDeliveryThreads(delivery_threads).setUseVirtualThreads(use_virtual_threads)
           .start();
     }
 
@@ -124,6 +271,12 @@ public abstract class UpgradeBase5_2 extends Protocol {
         client.stop();
     }
 
+    public void resetStats() {
+        super.resetStats();
+        addr_cache.resetStats();
+        client.compressor().resetStats();
+    }
+
     @ManagedOperation(description="Enable forwarding and receiving of messages to/from the UpgradeServer")
     public synchronized void activate() {
         if(!active) {
@@ -177,8 +330,12 @@ public abstract class UpgradeBase5_2 extends Protocol {
     public Object up(Event evt) {
         if(evt.type() == Event.VIEW_CHANGE) {
             local_view=evt.arg();
-            if(active)
+            local_members=new HashSet<>(local_view.getMembers());
+            if(active) {
+                if(sub_cluster_routing)
+                    client.sendLocalView(localView());
                 return null;
+            }
         }
         return up_prot.up(evt);
     }
@@ -186,21 +343,55 @@ public abstract class UpgradeBase5_2 extends Protocol {
     public Object down(Message msg) {
         if(!active)
             return down_prot.down(msg);
+        return route(msg);
+    }
 
-        // else send to UpgradeServer
+    /**
+     * Sends a message to the UpgradeServer, or delivers it locally. All decisions are made from the same snapshot of
+     * the features agreed with the server, as they may change on a reconnect: a unicast to self is looped back and a
+     * unicast to a member of our sub-cluster is sent down the local stack. A multicast sent to our sub-cluster is
+     * marked with {@link Utils#SUB_CLUSTER} and also sent down the local stack, or else it may be marked with
+     * {@link Utils#LOCAL_LOOPBACK} and looped back
+     */
+    protected Object route(Message msg) {
         if(msg.getSrc() == null)
             msg.setSrc(local_addr);
+        Address dest=msg.getDest();
+        if(local_addr.equals(dest)) { // no need to go through the server
+            loopback(msg);
+            return null;
+        }
+        int features=client.getNegotiatedFeatures();
+        boolean sub_cluster=Features.isSet(features, Features.SUB_CLUSTER);
+        if(dest != null && sub_cluster && local_members.contains(dest))
+            return down_prot.down(msg); // a member of our sub-cluster
+        int marker=dest != null? 0 : sub_cluster? Utils.SUB_CLUSTER
+          : Features.isSet(features, Features.LOCAL_LOOPBACK)? Utils.LOCAL_LOOPBACK : 0;
         try {
-            org.jgroups.upgrade_server.Message m=jgroupsMessageToProtobufMessage(cluster, msg);
-            Request req=Request.newBuilder().setMessage(m).build();
-            client.send(req);
+            client.send(jgroupsMessageToProtobufMessage(cluster, msg, marker));
         }
         catch(Exception e) {
             throw new RuntimeException(String.format("%s: failed sending message: %s", local_addr, e));
         }
+        // the server relays a multicast sent to our sub-cluster only to the other sub-clusters
+        if(marker == Utils.SUB_CLUSTER)
+            return down_prot.down(msg);
+        // the server doesn't send a multicast marked as delivered locally back to us
+        if(marker == Utils.LOCAL_LOOPBACK && !msg.isFlagSet(Message.TransientFlag.DONT_LOOPBACK))
+            loopback(msg);
         return null;
     }
 
+    /**
+     * Delivers a message sent by this member to itself. A copy is delivered, as the message may still be changed (e.g.
+     * by a retransmission) after down() returns. The copy is passed up on the delivery pool (if enabled), like the
+     * messages received from the UpgradeServer, so that the sender doesn't run the receiver's code
+     */
+    protected void loopback(Message msg) {
+        Message copy=msg.copy(true, true);
+        client.deliverLocally(local_addr, msg.isFlagSet(Message.Flag.OOB), () -> up_prot.up(copy));
+    }
+
     protected void registerView() {
         org.jgroups.upgrade_server.View v=jgroupsViewToProtobufView(local_view);
         org.jgroups.upgrade_server.Address local=jgroupsAddressToProtobufAddress(local_addr);
@@ -216,17 +407,33 @@ public abstract class UpgradeBase5_2 extends Protocol {
     protected void connect() {
         org.jgroups.upgrade_server.Address addr=jgroupsAddressToProtobufAddress(local_addr);
         log.debug("%s: joining cluster %s", local_addr, cluster);
-        client.connect(cluster, addr);
+        member_ids=null; // ids are assigned by the server and are therefore only valid for this connection
+        client.connect(cluster, addr, sub_cluster_routing? localView() : null);
     }
 
     protected void disconnect() {
         org.jgroups.upgrade_server.Address addr=jgroupsAddressToProtobufAddress(local_addr);
         log.debug("%s: leaving cluster %s", local_addr, cluster);
+        member_ids=null;
         client.disconnect(cluster, addr);
     }
 
+    /** Returns the local view and sub-cluster of this member, announced to the UpgradeServer */
+    protected LocalView localView() {
+        LocalView.Builder builder=LocalView.newBuilder().setClusterName(cluster)
+          .setMember(jgroupsAddressToProtobufAddress(local_addr)).setSubCluster(sub_cluster);
+        View v=local_view;
+        if(v != null)
+            for(Address mbr: v.getMembers())
+                builder.addMembers(jgroupsAddressToProtobufAddress(mbr));
+        return builder.build();
+    }
+
     protected void handleView(org.jgroups.upgrade_server.View view) {
         View jg_view=protobufViewToJGroupsView(view);
+        member_ids=compact && client.supports(Features.COMPACT)?
+          MemberIds.create(view, this::protobufAddressToJGroupsAddress) : null;
+        addr_cache.retainAll(jg_view.getMembers());
         if(!active) {
             log.warn("%s: global view %s from server is discarded as active == false", local_addr, jg_view);
             return;
@@ -239,13 +446,71 @@ public abstract class UpgradeBase5_2 extends Protocol {
     protected void handleMessage(org.jgroups.upgrade_server.Message m) {
         try {
             Message msg=protobufMessageToJGroupsMessage(m);
-            up_prot.up(msg);
+            if(!receivedLocally(m, msg))
+                up_prot.up(msg);
         }
         catch(Exception e) {
             log.error("%s: failed reading message: %s", local_addr, e);
         }
     }
 
+    /**
+     * Passes the messages of a batch up as {@link MessageBatch}es, like the transport does: messages are grouped by
+     * sender, unicast/multicast and OOB/regular, and the order of the messages of the same group is preserved
+     */
+    protected void handleBatch(org.jgroups.upgrade_server.MessageBatch mb) {
+        List<MessageBatch> batches=new ArrayList<>(4);
+        AsciiString cluster_name=null;
+        for(org.jgroups.upgrade_server.Message m: mb.getMessagesList()) {
+            Message msg;
+            try {
+                msg=protobufMessageToJGroupsMessage(m);
+            }
+            catch(Exception e) {
+                log.error("%s: failed reading message: %s", local_addr, e);
+                continue;
+            }
+            if(receivedLocally(m, msg))
+                continue;
+            boolean multicast=msg.getDest() == null, oob=msg.isFlagSet(Message.Flag.OOB);
+            MessageBatch batch=find(batches, msg.getSrc(), multicast, oob);
+            if(batch == null) {
+                if(cluster_name == null)
+                    cluster_name=new AsciiString(cluster);
+                batch=new MessageBatch(msg.getDest(), msg.getSrc(), cluster_name, multicast,
+                                       oob? MessageBatch.Mode.OOB : MessageBatch.Mode.REG, 16);
+                batches.add(batch);
+            }
+            batch.add(msg);
+        }
+        for(MessageBatch batch: batches) {
+            try {
+                up_prot.up(batch);
+            }
+            catch(Throwable t) {
+                log.error("%s: failed passing up batch %s: %s", local_addr, batch, t);
+            }
+        }
+    }
+
+    /**
+     * True if the message is a multicast which the sender also sent to its sub-cluster, and we're in the sender's
+     * sub-cluster: we receive the message from the local stack (the server may not have excluded us yet, e.g. when it
+     * has not yet received the sender's new local view)
+     */
+    protected boolean receivedLocally(org.jgroups.upgrade_server.Message m, Message msg) {
+        return (m.getFlags() & Utils.SUB_CLUSTER) != 0 && local_members.contains(msg.getSrc());
+    }
+
+    protected static MessageBatch find(List<MessageBatch> batches, Address sender, boolean multicast, boolean oob) {
+        MessageBatch.Mode mode=oob? MessageBatch.Mode.OOB : MessageBatch.Mode.REG;
+        for(MessageBatch batch: batches) {
+            if(batch.multicast() == multicast && batch.mode() == mode && Objects.equals(batch.sender(), sender))
+                return batch;
+        }
+        return null;
+    }
+
     protected void handleViewResponse(org.jgroups.upgrade_server.GetViewResponse rsp) {
         org.jgroups.upgrade_server.View v=rsp.getView();
         View view=protobufViewToJGroupsView(v);
@@ -264,22 +529,60 @@ public abstract class UpgradeBase5_2 extends Protocol {
         active=false;
     }
 
-    protected static org.jgroups.upgrade_server.Message.Builder msgBuilder(String cluster, Address src, Address dest,
-                                                                           short flags, Metadata md) {
-        org.jgroups.upgrade_server.Message.Builder builder=org.jgroups.upgrade_server.Message.newBuilder()
-          .setClusterName(cluster);
-        if(dest !=null)
+    protected org.jgroups.upgrade_server.Message.Builder msgBuilder(String cluster, Address src, Address dest,
+                                                                    int flags, Metadata md) {
+        org.jgroups.upgrade_server.Message.Builder builder=org.jgroups.upgrade_server.Message.newBuilder();
+        MemberIds<Address> ids=member_ids;
+        int dest_id=ids != null? ids.id(dest) : 0, src_id=ids != null? ids.id(src) : 0;
+        if(ids != null)
+            builder.setClusterId(ids.clusterId());
+        else
+            builder.setClusterName(cluster);
+        if(dest_id > 0)
+            builder.setDestId(dest_id);
+        else if(dest !=null)
             builder.setDestination(jgroupsAddressToProtobufAddress(dest));
-        if(src != null)
+        if(src_id > 0)
+            builder.setSenderId(src_id);
+        else if(src != null)
             builder.setSender(jgroupsAddressToProtobufAddress(src));
         if(md != null)
             builder.setMetaData(md);
         return builder.setFlags(flags);
     }
 
-    protected static boolean setHeaders(org.jgroups.upgrade_server.Message.Builder builder,
-                                        RequestCorrelator.Header req_hdr,
-                                        org.jgroups.protocols.relay.RelayHeader relay_hdr) {
+    /**
+     * Returns the destination of a message (null if sent to all); in compact form, it is referred to by its id
+     * @throws IllegalStateException If the id is not in the installed view, so that the message is dropped instead of
+     *                               being delivered as a multicast
+     */
+    protected Address destination(org.jgroups.upgrade_server.Message msg) {
+        if(msg.hasDestination())
+            return protobufAddressToJGroupsAddress(msg.getDestination());
+        return msg.getDestId() > 0? member(msg.getDestId()) : null;
+    }
+
+    /**
+     * Returns the sender of a message; in compact form, it is referred to by its id
+     * @throws IllegalStateException If the id is not in the installed view
+     */
+    protected Address sender(org.jgroups.upgrade_server.Message msg) {
+        if(msg.hasSender())
+            return protobufAddressToJGroupsAddress(msg.getSender());
+        return msg.getSenderId() > 0? member(msg.getSenderId()) : null;
+    }
+
+    protected Address member(int id) {
+        MemberIds<Address> ids=member_ids;
+        Address addr=ids != null? ids.member(id) : null;
+        if(addr == null)
+            throw new IllegalStateException(String.format("unknown member id %d (view: %s)", id, ids));
+        return addr;
+    }
+
+    protected boolean setHeaders(org.jgroups.upgrade_server.Message.Builder builder,
+                                 RequestCorrelator.Header req_hdr,
+                                 org.jgroups.protocols.relay.RelayHeader relay_hdr) {
         boolean is_rsp=false;
         Headers.Builder hdr_builder=Headers.newBuilder();
         if(req_hdr != null) {
@@ -295,19 +598,20 @@ public abstract class UpgradeBase5_2 extends Protocol {
         return is_rsp;
     }
 
-    protected abstract org.jgroups.upgrade_server.Message jgroupsMessageToProtobufMessage(String cluster, Message jg_msg)
-      throws Exception;
+    /** Converts a JGroups message; marker is {@link Utils#SUB_CLUSTER}, {@link Utils#LOCAL_LOOPBACK} or 0 */
+    protected abstract org.jgroups.upgrade_server.Message jgroupsMessageToProtobufMessage(String cluster, Message jg_msg,
+                                                                                          int marker) throws Exception;
 
     protected abstract Message protobufMessageToJGroupsMessage(org.jgroups.upgrade_server.Message msg) throws Exception;
 
 
-    protected static RpcHeader jgroupsReqHeaderToProtobufRpcHeader(RequestCorrelator.Header hdr) {
+    protected RpcHeader jgroupsReqHeaderToProtobufRpcHeader(RequestCorrelator.Header hdr) {
         RpcHeader.Builder builder = RpcHeader.newBuilder().setType(hdr.type).setRequestId(hdr.req_id).setCorrId(hdr.corrId);
         if (hdr instanceof RequestCorrelator.MultiDestinationHeader) {
             RequestCorrelator.MultiDestinationHeader mdhdr = (RequestCorrelator.MultiDestinationHeader) hdr;
             Address[] exclusions = mdhdr.exclusion_list;
             if (exclusions != null && exclusions.length > 0) {
-                builder.addAllExclusionList(Arrays.stream(exclusions).map(UpgradeBase5_2::jgroupsAddressToProtobufAddress)
+                builder.addAllExclusionList(Arrays.stream(exclusions).map(this::jgroupsAddressToProtobufAddress)
                                               .collect(Collectors.toList()));
             }
         }
@@ -321,7 +625,7 @@ public abstract class UpgradeBase5_2 extends Protocol {
         return (RequestCorrelator.Header)new RequestCorrelator.Header(type, request_id, corr_id).setProtId(REQ_ID);
     }
 
-    protected static RelayHeader jgroupsRelayHeaderToProtobuf(org.jgroups.protocols.relay.RelayHeader jg_hdr) {
+    protected RelayHeader jgroupsRelayHeaderToProtobuf(org.jgroups.protocols.relay.RelayHeader jg_hdr) {
         RelayHeader.Builder rb=RelayHeader.newBuilder();
         switch(jg_hdr.getType()) {
             case DATA: rb.setType(RelayHeader.Type.DATA); break;
@@ -348,7 +652,7 @@ public abstract class UpgradeBase5_2 extends Protocol {
         return rb.build();
     }
 
-    protected static org.jgroups.protocols.relay.RelayHeader protobufRelayHeaderToJGroups(RelayHeader pbuf_hdr) {
+    protected org.jgroups.protocols.relay.RelayHeader protobufRelayHeaderToJGroups(RelayHeader pbuf_hdr) {
         byte        type=-1;
         Address     final_dest=null, original_sender=null;
         Set<String> sites=null;
@@ -393,7 +697,20 @@ public abstract class UpgradeBase5_2 extends Protocol {
     }
 
 
-    protected static org.jgroups.upgrade_server.Address jgroupsAddressToProtobufAddress(Address jgroups_addr) {
+    protected org.jgroups.upgrade_server.Address jgroupsAddressToProtobufAddress(Address jgroups_addr) {
+        return addr_cache.toProtobuf(jgroups_addr, UpgradeBase5_2::toProtobufAddress);
+    }
+
+    protected Address protobufAddressToJGroupsAddress(org.jgroups.upgrade_server.Address pbuf_addr) {
+        Address addr=addr_cache.fromProtobuf(pbuf_addr, UpgradeBase5_2::toJGroupsAddress);
+        // on a hit, too: NameCache is bounded, so the name may have been removed since the conversion was cached
+        String name=addr != null? pbuf_addr.getName() : null;
+        if(name != null && !name.isEmpty() && !name.equals(NameCache.get(addr)))
+            NameCache.add(addr, name);
+        return addr;
+    }
+
+    protected static org.jgroups.upgrade_server.Address toProtobufAddress(Address jgroups_addr) {
         if(jgroups_addr == null)
             return org.jgroups.upgrade_server.Address.newBuilder().build();
         if(!(jgroups_addr instanceof org.jgroups.util.UUID))
@@ -424,7 +741,7 @@ public abstract class UpgradeBase5_2 extends Protocol {
         return addr_builder.build();
     }
 
-    protected static Address protobufAddressToJGroupsAddress(org.jgroups.upgrade_server.Address pbuf_addr) {
+    protected static Address toJGroupsAddress(org.jgroups.upgrade_server.Address pbuf_addr) {
         if(pbuf_addr == null)
             return null;
 
@@ -450,7 +767,7 @@ public abstract class UpgradeBase5_2 extends Protocol {
         return retval;
     }
 
-    protected static org.jgroups.upgrade_server.View jgroupsViewToProtobufView(View v) {
+    protected org.jgroups.upgrade_server.View jgroupsViewToProtobufView(View v) {
         ViewId view_id=jgroupsViewIdToProtobufViewId(v.getViewId());
         List<org.jgroups.upgrade_server.Address> mbrs=new ArrayList<>(v.size());
         for(Address a: v)
@@ -458,18 +775,18 @@ public abstract class UpgradeBase5_2 extends Protocol {
         return org.jgroups.upgrade_server.View.newBuilder().addAllMember(mbrs).setViewId(view_id).build();
     }
 
-    protected static ViewId jgroupsViewIdToProtobufViewId(org.jgroups.ViewId view_id) {
+    protected ViewId jgroupsViewIdToProtobufViewId(org.jgroups.ViewId view_id) {
         org.jgroups.upgrade_server.Address coord=jgroupsAddressToProtobufAddress(view_id.getCreator());
         return ViewId.newBuilder().setCreator(coord).setId(view_id.getId()).build();
     }
 
-    protected static org.jgroups.View protobufViewToJGroupsView(org.jgroups.upgrade_server.View v) {
+    protected org.jgroups.View protobufViewToJGroupsView(org.jgroups.upgrade_server.View v) {
         org.jgroups.upgrade_server.ViewId pbuf_vid=v.getViewId();
         List<org.jgroups.upgrade_server.Address> pbuf_mbrs=v.getMemberList();
         org.jgroups.ViewId jg_vid=new org.jgroups.ViewId(protobufAddressToJGroupsAddress(pbuf_vid.getCreator()),
                                                          pbuf_vid.getId());
         List<Address> members=new ArrayList<>();
-        pbuf_mbrs.stream().map(UpgradeBase5_2::protobufAddressToJGroupsAddress).forEach(members::add);
+        pbuf_mbrs.stream().map(this::protobufAddressToJGroupsAddress).forEach(members::add);
         return new org.jgroups.View(jg_vid, members);
     }
 
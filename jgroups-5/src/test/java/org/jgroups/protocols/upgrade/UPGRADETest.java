@@ -0,0 +1,104 @@
+package org.jgroups.protocols.upgrade;
+
+import org.jgroups.BytesMessage;
+import org.jgroups.Message;
+import org.jgroups.NioMessage;
+import org.jgroups.common.DeliveryPool;
+import org.jgroups.common.GrpcClient;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.UUID;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link UPGRADE}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class UPGRADETest {
+
+    /** A direct buffer which is reused after sending doesn't change the payload of the sent message */
+    public void testDirectBufferReusedAfterSend() throws Exception {
+        List<org.jgroups.upgrade_server.Message> sent=new ArrayList<>();
+        UPGRADE upgrade=create(sent, false);
+        ByteBuffer buf=ByteBuffer.allocateDirect(10);
+        for(int i=0; i < 10; i++)
+            buf.put((byte)i);
+        buf.flip();
+        upgrade.down(new NioMessage(null, buf));
+        buf.clear();
+        for(int i=0; i < 10; i++)
+            buf.put((byte)-1);
+
+        assert sent.size() == 1;
+        NioMessage msg=new NioMessage();
+        UPGRADE.readPayload(msg, sent.get(0).getPayload());
+        assert msg.hasArray() && msg.getLength() == 10;
+        byte[] expected={0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        assert Arrays.equals(Arrays.copyOfRange(msg.getArray(), msg.getOffset(), msg.getOffset() + msg.getLength()), expected);
+    }
+
+    public void testPayloadRoundtrip() throws Exception {
+        List<org.jgroups.upgrade_server.Message> sent=new ArrayList<>();
+        UPGRADE upgrade=create(sent, false);
+        upgrade.down(new BytesMessage(null, "hello".getBytes()));
+        upgrade.down(new NioMessage(null, ByteBuffer.wrap("world".getBytes())));
+        Message m1=new BytesMessage(), m2=new NioMessage();
+        UPGRADE.readPayload(m1, sent.get(0).getPayload());
+        UPGRADE.readPayload(m2, sent.get(1).getPayload());
+        assert new String(m1.getArray(), m1.getOffset(), m1.getLength()).equals("hello");
+        assert new String(m2.getArray(), m2.getOffset(), m2.getLength()).equals("world");
+    }
+
+    /** A unicast to self is not sent to the server; a copy is delivered on the delivery pool */
+    public void testLoopback() throws Exception {
+        List<org.jgroups.upgrade_server.Message> sent=new ArrayList<>();
+        UPGRADE upgrade=create(sent, true);
+        BlockingQueue<Message> received=new LinkedBlockingQueue<>();
+        upgrade.setUpProtocol(new Protocol() {
+            public Object up(Message msg) {
+                received.add(msg);
+                return null;
+            }
+        });
+        Message msg=new BytesMessage(upgrade.getAddress(), "hello".getBytes());
+        upgrade.down(msg);
+        Message rsp=received.poll(5, TimeUnit.SECONDS);
+        assert sent.isEmpty();
+        assert rsp != null && rsp != msg;
+        assert new String(rsp.getArray(), rsp.getOffset(), rsp.getLength()).equals("hello");
+        upgrade.client.deliveryPool().stop();
+    }
+
+    /**
+     * Creates an active UPGRADE whose client collects the sent messages instead of sending them to a server
+     * @param pool Creates a delivery pool
+     */
+    protected static UPGRADE create(List<org.jgroups.upgrade_server.Message> sent, boolean pool) {
+        UPGRADE upgrade=new UPGRADE();
+        upgrade.client=new GrpcClient() {
+            {
+                if(pool)
+                    delivery_pool=new DeliveryPool(2, false).start();
+            }
+
+            @Override
+            public GrpcClient send(org.jgroups.upgrade_server.Message msg) {
+                sent.add(msg);
+                return this;
+            }
+        };
+        upgrade.setAddress(UUID.randomUUID());
+        upgrade.cluster="demo";
+        upgrade.active=true;
+        return upgrade;
+    }
+}
@@ -0,0 +1,392 @@
+package org.jgroups.upgrade_server;
+
+import org.jgroups.common.Features;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Maps the members of a cluster to their sessions. Members are keyed by the two longs of their UUID (the UUID of
+ * a SiteUUID), so neither the logical name nor any other field of {@link Address} is used for lookups. Entries are
+ * kept in an open-addressing table (linear probing) and in insertion order (the first member is the coordinator).
+ * Sessions may be null, e.g. for members registered by RegisterView which have not (yet) connected.
+ * <br/>
+ * Every member is assigned an id (starting at 1) when it is added. Ids are not reused, and are used by messages in
+ * compact form ({@link Features#COMPACT}) to refer to senders and destinations. A second open-addressing table maps
+ * ids to slots.
+ * <br/>
+ * Not thread-safe: access has to be synchronized by the caller.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class MemberIndex {
+    protected static final byte FREE=0, USED=1, DELETED=2;
+
+    protected long[]          most, least;  // the key: most and least significant bits of the UUID
+    protected Address[]       addrs;
+    protected MemberSession[] sessions;
+    protected byte[]          state;
+    protected int[]           next, prev;   // insertion order (doubly linked list of slots)
+    protected long[]          view_ids;     // the id of the last view sent to a member (0: none)
+    protected int[]           max_ids;      // the highest member id the member knows from the views sent to it
+    protected int[]           marks;        // used to mark excluded members in collect()
+    protected int[]           ids;          // the id of the member in a slot
+    protected int[]           id_keys;      // id -> slot table: the ids (0: free, -1: deleted) ...
+    protected int[]           id_slots;     // ... and the slots of the members
+    protected int             next_id=1;
+    protected int             id_fill;      // used and deleted entries of the id table
+    protected int             mark;
+    protected int             head=-1, tail=-1;
+    protected int             size, deleted;
+
+    public MemberIndex() {
+        this(16);
+    }
+
+    public MemberIndex(int initial_capacity) {
+        allocate(Integer.highestOneBit(Math.max(initial_capacity, 4) * 2 - 1));
+    }
+
+    public int     size()    {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    public MemberSession get(Address addr) {
+        int slot=find(addr);
+        return slot >= 0? sessions[slot] : null;
+    }
+
+    public boolean contains(Address addr) {
+        return find(addr) >= 0;
+    }
+
+    /** Returns the id of a member, or 0 if not found */
+    public int id(Address addr) {
+        int slot=find(addr);
+        return slot >= 0? ids[slot] : 0;
+    }
+
+    /** Returns the address of the member with the given id, or null if not found */
+    public Address getAddress(int id) {
+        int slot=findId(id);
+        return slot >= 0? addrs[slot] : null;
+    }
+
+    /** Returns the session of the member with the given id, or null if not found (or not connected) */
+    public MemberSession getSession(int id) {
+        int slot=findId(id);
+        return slot >= 0? sessions[slot] : null;
+    }
+
+    /** Returns the first member (the coordinator), or null if empty */
+    public Address first() {
+        return head >= 0? addrs[head] : null;
+    }
+
+    /**
+     * Adds a member. An existing member keeps its position, but its address and session are replaced if override
+     * is true
+     * @return true if the member had no session before (was absent or had a null session)
+     */
+    public boolean put(Address addr, MemberSession s, boolean override) {
+        long m=mostSig(addr), l=leastSig(addr);
+        int slot=find(m, l);
+        if(slot >= 0) {
+            MemberSession prev_session=sessions[slot];
+            if(override)
+                addrs[slot]=addr;
+            if((override || prev_session == null) && prev_session != s) { // like Map.putIfAbsent(), null is replaced
+                sessions[slot]=s;
+                view_ids[slot]=0; // a new session has not received any view
+            }
+            return prev_session == null;
+        }
+        if((Math.max(size + deleted, id_fill) + 1) * 4 > state.length * 3) // max load factor 0.75 (incl. tombstones)
+            resize(size + 1 > state.length / 2? state.length * 2 : state.length);
+        insert(m, l, addr, s, next_id++);
+        return true;
+    }
+
+    /** Removes a member and returns its session (null if not found or not connected) */
+    public MemberSession remove(Address addr) {
+        int slot=find(addr);
+        if(slot < 0)
+            return null;
+        MemberSession s=sessions[slot];
+        delete(slot);
+        return s;
+    }
+
+    /** Removes all members whose session matches the predicate */
+    public boolean removeIf(Predicate<? super MemberSession> predicate) {
+        boolean removed=false;
+        for(int slot=head; slot >= 0;) {
+            int nxt=next[slot];
+            if(predicate.test(sessions[slot])) {
+                delete(slot);
+                removed=true;
+            }
+            slot=nxt;
+        }
+        return removed;
+    }
+
+    /** Iterates over all members in insertion order */
+    public void forEach(BiConsumer<Address,MemberSession> c) {
+        for(int slot=head; slot >= 0; slot=next[slot])
+            c.accept(addrs[slot], sessions[slot]);
+    }
+
+    /** Iterates over all members and their ids in insertion order */
+    public void forEachId(ObjIntConsumer<Address> c) {
+        for(int slot=head; slot >= 0; slot=next[slot])
+            c.accept(addrs[slot], ids[slot]);
+    }
+
+    /** Returns all members in insertion order */
+    public List<Address> addresses() {
+        List<Address> l=new ArrayList<>(size);
+        for(int slot=head; slot >= 0; slot=next[slot])
+            l.add(addrs[slot]);
+        return l;
+    }
+
+    public List<MemberSession> collect(List<Address> exclusions, List<MemberSession> list) {
+        return collect(exclusions, null, list);
+    }
+
+    /**
+     * Adds the non-null sessions of all members which are not in exclusions to list, in insertion order. The excluded
+     * members are looked up by UUID and marked, so no set of addresses needs to be created
+     * @param excluded A session which is not added (e.g. the sender of a multicast it delivered itself), may be null
+     */
+    public List<MemberSession> collect(List<Address> exclusions, MemberSession excluded, List<MemberSession> list) {
+        return collect(exclusions, excluded, list, 0, null);
+    }
+
+    /**
+     * Same as {@link #collect(List, MemberSession, List)}, but adds the members which don't know the member id id
+     * (they have not yet been sent a view containing it) to unknown instead of list
+     * @param id A member id (messages in compact form refer to members by id), or 0
+     */
+    public List<MemberSession> collect(List<Address> exclusions, MemberSession excluded, List<MemberSession> list,
+                                       int id, List<MemberSession> unknown) {
+        if(exclusions == null || exclusions.isEmpty()) {
+            for(int slot=head; slot >= 0; slot=next[slot])
+                if(sessions[slot] != null && sessions[slot] != excluded)
+                    (max_ids[slot] >= id? list : unknown).add(sessions[slot]);
+            return list;
+        }
+        if(++mark == 0) { // wrapped around
+            Arrays.fill(marks, 0);
+            mark=1;
+        }
+        for(Address excl: exclusions) {
+            int slot=find(excl);
+            if(slot >= 0)
+                marks[slot]=mark;
+        }
+        for(int slot=head; slot >= 0; slot=next[slot])
+            if(sessions[slot] != null && sessions[slot] != excluded && marks[slot] != mark)
+                (max_ids[slot] >= id? list : unknown).add(sessions[slot]);
+        return list;
+    }
+
+    /** Returns the highest member id known by a member (from the views sent to it), or 0 if not found */
+    public int maxId(Address addr) {
+        int slot=find(addr);
+        return slot >= 0? max_ids[slot] : 0;
+    }
+
+    /** Returns the highest member id known by the member with the given id, or 0 if not found */
+    public int maxId(int id) {
+        int slot=findId(id);
+        return slot >= 0? max_ids[slot] : 0;
+    }
+
+    /**
+     * Splits the connected members into those which receive a delta to the view with id base_id (they support deltas
+     * and have received the base view) and those which receive the full view. All members are then marked as having
+     * received the view with id new_id
+     * @param base_id The id of the base view of the delta, or -1 if there is no delta
+     */
+    public void collectForView(long base_id, long new_id, List<MemberSession> delta, List<MemberSession> full) {
+        for(int slot=head; slot >= 0; slot=next[slot]) {
+            MemberSession s=sessions[slot];
+            if(s == null)
+                continue;
+            if(base_id >= 0 && view_ids[slot] == base_id && s.supports(Features.VIEW_DELTA))
+                delta.add(s);
+            else
+                full.add(s);
+            view_ids[slot]=new_id;
+        }
+    }
+
+    /**
+     * Records that the view with id view_id (whose highest member id is max_id) has been sent to the members which
+     * were selected for it by {@link #collectForView(long, long, List, List)}. Called after the view has been queued,
+     * so that messages referring to the new ids are queued after the view
+     */
+    public void viewSent(long view_id, int max_id) {
+        for(int slot=head; slot >= 0; slot=next[slot])
+            if(view_ids[slot] == view_id)
+                max_ids[slot]=Math.max(max_ids[slot], max_id);
+    }
+
+    @Override
+    public String toString() {
+        return Utils.print(addresses());
+    }
+
+    protected static long mostSig(Address a) {
+        if(a.hasUuid())
+            return a.getUuid().getMostSig();
+        if(a.hasSiteUuid())
+            return a.getSiteUuid().getUuid().getMostSig();
+        return nameUUID(a).getMostSignificantBits();
+    }
+
+    protected static long leastSig(Address a) {
+        if(a.hasUuid())
+            return a.getUuid().getLeastSig();
+        if(a.hasSiteUuid())
+            return a.getSiteUuid().getUuid().getLeastSig();
+        return nameUUID(a).getLeastSignificantBits();
+    }
+
+    /** Addresses without a UUID (only sent by demo clients) are keyed by their logical name */
+    protected static java.util.UUID nameUUID(Address a) {
+        return java.util.UUID.nameUUIDFromBytes(a.getName().getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static int hash(long m, long l) {
+        long h=m * 0x9E3779B97F4A7C15L ^ l;
+        h^=h >>> 33;
+        h*=0xFF51AFD7ED558CCDL;
+        h^=h >>> 33;
+        return (int)h;
+    }
+
+    /** Returns the slot of the member with the given id, or -1 if not found */
+    protected int findId(int id) {
+        if(id <= 0)
+            return -1;
+        int mask=id_keys.length - 1;
+        for(int i=hash(id, 0) & mask;; i=(i + 1) & mask) {
+            int key=id_keys[i];
+            if(key == 0)
+                return -1;
+            if(key == id)
+                return id_slots[i];
+        }
+    }
+
+    protected int find(Address addr) {
+        return find(mostSig(addr), leastSig(addr));
+    }
+
+    /** Returns the slot of the given key, or -1 if not found */
+    protected int find(long m, long l) {
+        int mask=state.length - 1;
+        for(int slot=hash(m, l) & mask;; slot=(slot + 1) & mask) {
+            byte st=state[slot];
+            if(st == FREE)
+                return -1;
+            if(st == USED && most[slot] == m && least[slot] == l)
+                return slot;
+        }
+    }
+
+    protected void insert(long m, long l, Address addr, MemberSession s, int id) {
+        int mask=state.length - 1, slot=hash(m, l) & mask;
+        while(state[slot] == USED)
+            slot=(slot + 1) & mask;
+        if(state[slot] == DELETED)
+            deleted--;
+        state[slot]=USED;
+        most[slot]=m;
+        least[slot]=l;
+        addrs[slot]=addr;
+        sessions[slot]=s;
+        view_ids[slot]=0;
+        max_ids[slot]=0;
+        marks[slot]=0;
+        ids[slot]=id;
+        int id_mask=id_keys.length - 1, i=hash(id, 0) & id_mask;
+        while(id_keys[i] > 0)
+            i=(i + 1) & id_mask;
+        if(id_keys[i] == 0)
+            id_fill++;
+        id_keys[i]=id;
+        id_slots[i]=slot;
+        next[slot]=-1;
+        prev[slot]=tail;
+        if(tail >= 0)
+            next[tail]=slot;
+        else
+            head=slot;
+        tail=slot;
+        size++;
+    }
+
+    protected void delete(int slot) {
+        int p=prev[slot], n=next[slot];
+        if(p >= 0)
+            next[p]=n;
+        else
+            head=n;
+        if(n >= 0)
+            prev[n]=p;
+        else
+            tail=p;
+        state[slot]=DELETED; // tombstone: keeps the probe sequences of other keys intact
+        int mask=id_keys.length - 1, i=hash(ids[slot], 0) & mask;
+        while(id_keys[i] != ids[slot])
+            i=(i + 1) & mask;
+        id_keys[i]=-1;       // same for the id table; both tables are rebuilt by resize()
+        addrs[slot]=null;
+        sessions[slot]=null;
+        size--;
+        deleted++;
+    }
+
+    /** Re-inserts all members (in insertion order) into new arrays, which also removes the tombstones */
+    protected void resize(int capacity) {
+        long[] old_most=most, old_least=least;
+        Address[] old_addrs=addrs;
+        MemberSession[] old_sessions=sessions;
+        long[] old_view_ids=view_ids;
+        int[] old_max_ids=max_ids;
+        int[] old_ids=ids, old_next=next;
+        int old_head=head;
+        allocate(capacity);
+        for(int slot=old_head; slot >= 0; slot=old_next[slot]) {
+            insert(old_most[slot], old_least[slot], old_addrs[slot], old_sessions[slot], old_ids[slot]);
+            view_ids[tail]=old_view_ids[slot];
+            max_ids[tail]=old_max_ids[slot];
+        }
+    }
+
+    protected void allocate(int capacity) {
+        most=new long[capacity];
+        least=new long[capacity];
+        addrs=new Address[capacity];
+        sessions=new MemberSession[capacity];
+        view_ids=new long[capacity];
+        max_ids=new int[capacity];
+        state=new byte[capacity];
+        next=new int[capacity];
+        prev=new int[capacity];
+        marks=new int[capacity];
+        ids=new int[capacity];
+        id_keys=new int[capacity];
+        id_slots=new int[capacity];
+        head=tail=-1;
+        size=deleted=id_fill=0;
+    }
+}
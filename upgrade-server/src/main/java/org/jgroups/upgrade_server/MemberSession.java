@@ -0,0 +1,480 @@
+package org.jgroups.upgrade_server;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.jgroups.common.Features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Wraps the stream to a registered member. Responses are not written to the stream by the caller of
+ * {@link #send(RelayResponse)}, but added to a bounded queue, which is drained by a single writer. This decouples
+ * senders from slow receivers: a sender only blocks when the receiver's queue is full.
+ * <br/>
+ * When flow control is enabled ({@link #flowControl(long)}), the writer only writes while the stream is ready, and
+ * messages are requested from the member's inbound stream one at a time. When a receiver has more than max_bytes
+ * queued, senders relaying to it stop requesting messages (and therefore stop reading from their streams) until the
+ * receiver has drained its queue, so gRPC's flow control slows down the senders. The queue is then bounded by
+ * max_bytes (plus one request, e.g. a batch) rather than by its capacity: a sender must never block in send(), as
+ * the blocked gRPC thread would also hold back the on-ready callbacks of its call, which can deadlock the writers.
+ * <br/>
+ * If the member supports {@link Features#BATCHING}, the writer coalesces the messages at the head of the queue into a
+ * single batch response of at most max_batch_size bytes. As gRPC flushes the stream after every response, this also
+ * flushes once per batch instead of once per message. A batch is written when the queue has no more messages, so no
+ * latency is added when the queue is (nearly) empty.
+ * <br/>
+ * If the member supports {@link Features#DATA_STREAM}, this session is its control stream, and data sessions (the
+ * member's other streams) can be attached to it: messages to the member are then sent on the data sessions, and
+ * views and other responses on this session, so that they are not queued behind messages. Until all data sessions
+ * are attached, requests from the member can be deferred ({@link #runWhenAttached(Runnable)}), so that all messages
+ * to a new member are sent on the same streams. A message received on a sender's stream with index i is sent on the
+ * receiver's data session with index i (modulo the number of data sessions), so messages received on the same
+ * stream are sent in the same order.
+ * <br/>
+ * Priority messages (OOB or INTERNAL, see {@link RelayRequest#isPriority()}) are sent to the control session, where
+ * they are added to an unbounded priority queue: the writer drains it before the regular queue, and never includes
+ * its messages in batches. Priority messages are therefore not ordered relative to regular messages, and senders
+ * never block on them.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class MemberSession {
+    protected final StreamObserver<RelayResponse>          obs;
+    protected BlockingQueue<RelayResponse>                 queue;
+    protected final Queue<RelayResponse>                   priority=new ConcurrentLinkedQueue<>(); // before queue
+    protected final AtomicInteger                          num_priority=new AtomicInteger(); // size() is O(n)
+    protected final Executor                               writer_pool;
+    // number of queued responses; the thread which increments this from 0 to 1 submits the (single) writer
+    protected final AtomicInteger                          size=new AtomicInteger();
+    protected BiConsumer<MemberSession,Throwable>          error_handler;
+    protected volatile boolean                             closed;
+    protected volatile int                                 features; // optional features supported by the member
+    protected boolean                                      completed; // only accessed by the writer
+    protected int                                          max_batch_size; // max bytes of a batch, 0: no batching
+    protected final List<RelayResponse>                    batch=new ArrayList<>(); // only accessed by the writer
+    protected long                                         num_batches, num_batched_msgs; // written by the writer
+
+    // flow control; call is null when disabled
+    protected ServerCallStreamObserver<RelayResponse>      call;
+    protected long                                         max_bytes;  // max number of queued bytes
+    protected final AtomicLong                             bytes=new AtomicLong(); // number of queued bytes
+    protected final AtomicBoolean                          paused=new AtomicBoolean(); // writer waits for on-ready
+    protected final Set<MemberSession>                     blocked_senders=ConcurrentHashMap.newKeySet();
+
+    // the clusters (and the addresses in them) this session is registered with; used to remove it on disconnect
+    protected final Map<String,Address>                    memberships=new ConcurrentHashMap<>();
+    // the local view (and sub-cluster) announced by the member per cluster (Features.SUB_CLUSTER)
+    protected final Map<String,LocalView>                  local_views=new ConcurrentHashMap<>();
+
+    // separate data stream (Features.DATA_STREAM)
+    protected long                                         id;       // identifies a control session, 0: none
+    protected volatile MemberSession[]                     data;     // the data sessions (copy-on-write), null: none
+    protected MemberSession                                control;  // the control session (if data session)
+    protected int                                          index;    // the index of a data session, 0 for control
+    protected boolean                                      awaiting_data; // guarded by pending
+    protected final List<Runnable>                         pending=new ArrayList<>(); // run when attached
+
+
+    public MemberSession(StreamObserver<RelayResponse> obs, int capacity, Executor writer_pool) {
+        this.obs=Objects.requireNonNull(obs);
+        this.queue=new ArrayBlockingQueue<>(capacity);
+        this.writer_pool=Objects.requireNonNull(writer_pool);
+    }
+
+    public StreamObserver<RelayResponse> observer()                                          {return obs;}
+    public int                           queueSize()                                         {return queue.size();}
+    public int                           queueCapacity()                                     {return queue.size() + queue.remainingCapacity();}
+    public boolean                       isClosed()                                          {return closed;}
+    public MemberSession                 errorHandler(BiConsumer<MemberSession,Throwable> h) {error_handler=h; return this;}
+    public Map<String,Address>           memberships()                                       {return memberships;}
+    public LocalView                     localView(String cluster)                           {return local_views.get(cluster);}
+    public int                           features()                                          {return features;}
+    public MemberSession                 features(int f)                                     {features=f; return this;}
+    public boolean                       supports(int feature)                               {return Features.isSet(features, feature);}
+    public int                           maxBatchSize()                                      {return max_batch_size;}
+    public MemberSession                 maxBatchSize(int s)                                 {max_batch_size=s; return this;}
+    public long                          numBatches()                                        {return num_batches;}
+    public long                          numBatchedMessages()                                {return num_batched_msgs;}
+    public long                          queuedBytes()                                       {return bytes.get();}
+    public long                          maxBytes()                                          {return max_bytes;}
+    public long                          id()                                                {return id;}
+    public MemberSession                 id(long i)                                          {id=i; return this;}
+    public MemberSession                 control()                                           {return control;}
+    public int                           index()                                             {return index;}
+    /** True if flow control is enabled and more than max_bytes are queued */
+    public boolean                       congested()                                         {return call != null && bytes.get() > max_bytes;}
+
+    public MemberSession addMembership(String cluster, Address addr) {
+        memberships.put(cluster, addr);
+        return this;
+    }
+
+    public MemberSession removeMembership(String cluster, Address addr) {
+        if(memberships.remove(cluster, addr))
+            local_views.remove(cluster);
+        return this;
+    }
+
+    /** Sets the local view of the member in the given cluster; null removes it */
+    public MemberSession localView(String cluster, LocalView lv) {
+        if(lv == null)
+            local_views.remove(cluster);
+        else
+            local_views.put(cluster, lv);
+        return this;
+    }
+
+    /**
+     * Returns the session messages received on a sender's stream with the given index are sent on: the data session
+     * with that index (modulo the number of data sessions) if attached, or else this session
+     */
+    public MemberSession data(int stream) {
+        MemberSession[] d=data;
+        if(d == null)
+            return this;
+        MemberSession s=d[stream % d.length];
+        return s != null && !s.closed? s : this;
+    }
+
+    /** Expects num data sessions to be attached: tasks passed to {@link #runWhenAttached(Runnable)} are deferred */
+    public MemberSession awaitDataSessions(int num) {
+        synchronized(pending) {
+            data=new MemberSession[num];
+            awaiting_data=true;
+        }
+        return this;
+    }
+
+    /**
+     * Attaches a data session (which gets the features of this session). The deferred tasks are run when all
+     * expected data sessions have been attached
+     * @return True if attached, false if no data session was expected (anymore), e.g. after {@link #stopAwaiting()}
+     */
+    public boolean attach(MemberSession d) {
+        synchronized(pending) {
+            if(!awaiting_data)
+                return false;
+            MemberSession[] tmp=data.clone();
+            int i=0;
+            while(tmp[i] != null)
+                i++;
+            d.control=this;
+            d.index=i;
+            d.features(features);
+            tmp[i]=d;
+            data=tmp;
+            if(i == tmp.length - 1)
+                runPending();
+        }
+        return true;
+    }
+
+    /** Detaches a data session: messages are sent on this session instead */
+    public MemberSession detach(MemberSession d) {
+        synchronized(pending) {
+            MemberSession[] tmp=data;
+            if(tmp != null && d.index < tmp.length && tmp[d.index] == d) {
+                tmp=tmp.clone();
+                tmp[d.index]=null;
+                data=tmp;
+            }
+        }
+        return this;
+    }
+
+    /** Stops waiting for a data session (e.g. on a timeout) and runs the deferred tasks */
+    public MemberSession stopAwaiting() {
+        synchronized(pending) {
+            if(awaiting_data)
+                runPending();
+        }
+        return this;
+    }
+
+    /** Stops waiting for a data session, discarding the deferred tasks (e.g. when the stream was closed) */
+    public MemberSession discardPending() {
+        synchronized(pending) {
+            awaiting_data=false;
+            pending.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Runs a task now, or when the data session is attached. Tasks are run in the order in which they were passed to
+     * this method, by the caller or by the thread attaching the data session
+     */
+    public void runWhenAttached(Runnable task) {
+        synchronized(pending) {
+            if(awaiting_data) {
+                pending.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Enables flow control. Has to be called before the service's connectRelay() method returns
+     * @param max_bytes The max number of bytes queued for this member before senders to it are blocked
+     */
+    public MemberSession flowControl(long max_bytes) {
+        if(!(obs instanceof ServerCallStreamObserver))
+            throw new IllegalStateException(String.format("flow control requires a %s",
+                                                          ServerCallStreamObserver.class.getSimpleName()));
+        this.max_bytes=max_bytes;
+        queue=new LinkedBlockingQueue<>(); // bounded by max_bytes, see above
+        call=(ServerCallStreamObserver<RelayResponse>)obs;
+        call.disableAutoRequest();
+        call.setOnReadyHandler(this::onReady);
+        call.request(1);
+        return this;
+    }
+
+    /**
+     * Requests the next message from this member's inbound stream (no-op without flow control). If the receiver
+     * the last message was relayed to is congested, the request is deferred until that receiver has drained its queue
+     * @param receiver A congested receiver, or null
+     */
+    public void requestNext(MemberSession receiver) {
+        if(call == null)
+            return;
+        if(receiver != null && receiver.block(this))
+            return;
+        call.request(1);
+    }
+
+    /** Resumes all senders that were blocked on this member */
+    public void resumeSenders() {
+        for(MemberSession sender: blocked_senders) {
+            if(blocked_senders.remove(sender)) // only one thread may resume a given sender
+                sender.call.request(1);
+        }
+    }
+
+    /** Wraps the response into a {@link RelayResponse} and calls {@link #send(RelayResponse)} */
+    public boolean send(Response rsp) {
+        return send(RelayResponse.of(rsp));
+    }
+
+    public boolean send(RelayResponse rsp) {
+        return send(rsp, false);
+    }
+
+    /**
+     * Adds a response to the queue and returns immediately, unless the queue is full, in which case the caller
+     * blocks until space is available (never with flow control, as the queue is unbounded)
+     * @param priority Adds the response to the (unbounded) priority queue, which is written before the regular queue
+     * @return true if the response was added, false if the session was closed (or the caller was interrupted)
+     */
+    public boolean send(RelayResponse rsp, boolean priority) {
+        if(closed)
+            return false;
+        if(priority) {
+            this.priority.add(rsp);
+            num_priority.incrementAndGet();
+        }
+        else {
+            try {
+                queue.put(rsp);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if(call != null)
+            bytes.addAndGet(rsp.size());
+        if(size.getAndIncrement() == 0)
+            writer_pool.execute(this::drain);
+        return true;
+    }
+
+    /**
+     * Completes the stream (and the attached data streams) once all responses queued so far have been written. Never
+     * blocks, even if the queue is full: the writer completes the stream when it finds the queues empty after close()
+     */
+    public void close() {
+        if(!closed) {
+            closed=true;
+            // counted like a response, so that the writer polls once more after the responses queued so far
+            if(size.getAndIncrement() == 0)
+                writer_pool.execute(this::drain);
+        }
+        closeDataSessions();
+    }
+
+    public void closeDataSessions() {
+        MemberSession[] tmp=data;
+        if(tmp != null) {
+            for(MemberSession d: tmp)
+                if(d != null)
+                    d.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        String s=call != null? String.format("queue: %d", queueSize()) : String.format("queue: %d/%d", queueSize(), queueCapacity());
+        if(call != null)
+            s+=String.format(", bytes: %,d/%,d%s%s", bytes.get(), max_bytes, paused.get()? " (paused)" : "",
+                             blocked_senders.isEmpty()? "" : String.format(", blocked senders: %d", blocked_senders.size()));
+        if(num_priority.get() > 0)
+            s+=String.format(", priority: %d", num_priority.get());
+        if(num_batches > 0)
+            s+=String.format(", batches: %,d (%,d msgs)", num_batches, num_batched_msgs);
+        if(closed)
+            s+=" (closed)";
+        MemberSession[] tmp=data;
+        if(tmp == null)
+            return s;
+        StringBuilder sb=new StringBuilder(s);
+        for(int i=0; i < tmp.length; i++)
+            sb.append(String.format(", data stream %d: [%s]", i, tmp[i] != null? tmp[i] : "n/a"));
+        return sb.toString();
+    }
+
+    /** Only ever run by a single thread at a time */
+    protected void drain() {
+        for(;;) {
+            if(call != null && !call.isReady()) {
+                paused.set(true);
+                // the stream might have become ready before paused was set
+                if(!call.isReady() || !paused.compareAndSet(true, false))
+                    return; // onReady() will resume draining
+            }
+            RelayResponse rsp=priority.poll();
+            boolean prio=rsp != null;
+            if(prio)
+                num_priority.decrementAndGet();
+            else
+                rsp=queue.poll();
+            int num=1;
+            if(rsp == null) { // all queued responses have been written after close(), or a write failed
+                if(closed && !completed)
+                    complete();
+            }
+            else if(!completed) {
+                int rsp_size=rsp.size();
+                if(!prio && rsp.isMessage() && max_batch_size > 0 && supports(Features.BATCHING)) {
+                    num=addToBatch(rsp);
+                    if(num > 1) {
+                        rsp_size=0;
+                        for(RelayResponse r: batch)
+                            rsp_size+=r.size();
+                        rsp=RelayResponse.batch(batch, rsp_size);
+                        num_batches++;
+                        num_batched_msgs+=num;
+                    }
+                    batch.clear();
+                }
+                write(rsp, rsp_size);
+            }
+            if(size.addAndGet(-num) == 0)
+                return;
+        }
+    }
+
+    /**
+     * Adds the given message and the messages following it in the queue to batch, until a non-message is found, or
+     * max_batch_size would be exceeded. Only responses counted in size are removed, as they are known to be in the queue
+     * (num_priority is incremented before and decremented after size, so subtracting it is safe)
+     * @return The number of messages removed from the queue (including msg)
+     */
+    protected int addToBatch(RelayResponse msg) {
+        int num=1, avail=size.get() - num_priority.get(), total=msg.size();
+        batch.add(msg);
+        for(RelayResponse next; num < avail && (next=queue.peek()) != null; num++) {
+            if(!next.isMessage() || total + next.size() > max_batch_size)
+                break;
+            batch.add(queue.poll());
+            total+=next.size();
+        }
+        return num;
+    }
+
+    /**
+     * Writes a response to the stream
+     * @param rsp The response
+     * @param accounted The number of bytes added to bytes when the response was queued (differs from its size for batches)
+     */
+    protected void write(RelayResponse rsp, int accounted) {
+        try {
+            obs.onNext(rsp);
+        }
+        catch(Throwable t) {
+            closed=completed=true;
+            // the discarded responses are subtracted from size, so that drain() doesn't poll for them
+            int discarded=0, discarded_prio=0;
+            while(queue.poll() != null)
+                discarded++;
+            while(priority.poll() != null)
+                discarded_prio++;
+            num_priority.addAndGet(-discarded_prio);
+            size.addAndGet(-discarded - discarded_prio);
+            bytes.set(0);
+            resumeSenders();
+            if(error_handler != null)
+                error_handler.accept(this, t);
+            return;
+        }
+        if(call != null && bytes.addAndGet(-accounted) <= max_bytes && !blocked_senders.isEmpty())
+            resumeSenders();
+    }
+
+    /** Completes the stream; called by the writer when the queues are empty after close() */
+    protected void complete() {
+        completed=true;
+        try {
+            obs.onCompleted();
+        }
+        catch(Throwable t) {
+            if(error_handler != null)
+                error_handler.accept(this, t);
+        }
+        resumeSenders();
+    }
+
+    /** Runs the deferred tasks; called with the lock on pending held */
+    protected void runPending() {
+        awaiting_data=false;
+        List<Runnable> tasks=new ArrayList<>(pending);
+        pending.clear();
+        for(Runnable task: tasks)
+            task.run();
+    }
+
+    /** Called by gRPC when the stream becomes writable again */
+    protected void onReady() {
+        if(paused.compareAndSet(true, false))
+            writer_pool.execute(this::drain);
+    }
+
+    /**
+     * Called on a receiver by a sender which relayed a message to it. Adds the sender to the blocked senders if this
+     * member is congested
+     * @return true if the sender was blocked, false otherwise
+     */
+    protected boolean block(MemberSession sender) {
+        blocked_senders.add(sender);
+        if(congested())
+            return true;
+        // the queue was drained in the meantime: unblock the sender, unless resumeSenders() has already done so
+        return !blocked_senders.remove(sender);
+    }
+}
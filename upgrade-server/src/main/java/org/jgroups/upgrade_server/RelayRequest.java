@@ -0,0 +1,291 @@
+package org.jgroups.upgrade_server;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.jgroups.common.Compressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * A request received by the UpgradeService. Messages are not parsed: only the envelope fields needed for routing
+ * (cluster name, destination, flags and the exclusion list of the RPC header) are read, and the encoded request is
+ * retained as is. Since {@link Request} and {@link Response} both have the message as field 1, the encoded request is
+ * also the encoded response that is relayed to the receivers. All other requests are parsed into a {@link Request}.
+ * <br/>
+ * The messages of a {@link MessageBatch} are parsed the same way: each message of a batch is encoded like a
+ * Request (or Response) with a single message (field 1), so it is relayed as the part of the batch's buffer it
+ * occupies.
+ * <br/>
+ * A message in compact form ({@link org.jgroups.common.Features#COMPACT}) refers to its cluster, destination and
+ * sender by ids; {@link #expand(String, Address, Address)} creates the full form for receivers which don't support it.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class RelayRequest {
+    protected final byte[]             data;       // the encoded request
+    protected final int                offset, length; // the message is at data[offset .. offset+length-1]
+    protected final Request            request;    // null if this is a message (or batch)
+    protected final String             cluster;    // the fields below are only set if this is a message
+    protected final Address            dest;       // null: send to all
+    protected final List<Address>      exclusions;
+    protected final List<RelayRequest> batch;      // the messages of a batch, null if this is not a batch
+    protected int                      cluster_id, dest_id, sender_id; // compact form, 0 if not set
+    protected int                      uncompressed_size; // > 0: the payload is compressed
+    protected int                      flags;      // the JGroups message flags
+    protected int                      body;       // offset of the fields of the message (after tag and length)
+
+    public static final MethodDescriptor.Marshaller<RelayRequest> MARSHALLER=new Marshaller();
+
+    protected static final int MESSAGE_TAG=tag(Request.MESSAGE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    protected static final int CLUSTER_TAG=tag(Message.CLUSTER_NAME_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    protected static final int DEST_TAG=tag(Message.DESTINATION_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    protected static final int HEADERS_TAG=tag(Message.HEADERS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    protected static final int CLUSTER_ID_TAG=tag(Message.CLUSTER_ID_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    protected static final int DEST_ID_TAG=tag(Message.DEST_ID_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    protected static final int SENDER_ID_TAG=tag(Message.SENDER_ID_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    protected static final int FLAGS_TAG=tag(Message.FLAGS_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    protected static final int UNCOMPRESSED_TAG=tag(Message.UNCOMPRESSED_SIZE_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    protected static final int BATCH_TAG=tag(Request.BATCH_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    protected static final int BATCH_MSG_TAG=tag(MessageBatch.MESSAGES_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+
+    protected static int tag(int field, int wire_type) {
+        return field << 3 | wire_type;
+    }
+
+    protected RelayRequest(byte[] data, Request request) {
+        this(data, 0, data.length, request, null, null, Collections.emptyList(), null);
+    }
+
+    protected RelayRequest(byte[] data, List<RelayRequest> batch) {
+        this(data, 0, data.length, null, null, null, Collections.emptyList(), batch);
+    }
+
+    protected RelayRequest(byte[] data, int offset, int length, Request request, String cluster, Address dest,
+                           List<Address> exclusions, List<RelayRequest> batch) {
+        this.data=data;
+        this.offset=offset;
+        this.length=length;
+        this.request=request;
+        this.cluster=cluster;
+        this.dest=dest;
+        this.exclusions=exclusions;
+        this.batch=batch;
+    }
+
+    public boolean            isMessage()   {return request == null && batch == null;}
+    public boolean            isBatch()     {return batch != null;}
+    public Request            request()     {return request;}
+    public List<RelayRequest> batch()       {return batch;}
+    public byte[]             data()        {return data;}
+    public int                offset()      {return offset;}
+    public int                length()      {return length;}
+    public String             cluster()     {return cluster;}
+    public Address            destination() {return dest;}
+    public List<Address>      exclusions()  {return exclusions;}
+    public int                clusterId()   {return cluster_id;}
+    public int                destId()      {return dest_id;}
+    public int                senderId()    {return sender_id;}
+    public boolean            isCompact()   {return cluster_id > 0 || dest_id > 0 || sender_id > 0;}
+    public boolean            isCompressed() {return uncompressed_size > 0;}
+    public int                flags()       {return flags;}
+    /** True if the message is OOB or INTERNAL: it is relayed on the receivers' priority lanes */
+    public boolean            isPriority()  {return org.jgroups.common.Utils.isPriority(flags);}
+    /** True if the sender delivered the message itself ({@link org.jgroups.common.Features#LOCAL_LOOPBACK}) */
+    public boolean            isLocalLoopback() {return (flags & org.jgroups.common.Utils.LOCAL_LOOPBACK) != 0;}
+    /** True if the sender multicast the message to its local cluster itself ({@link org.jgroups.common.Features#SUB_CLUSTER}) */
+    public boolean            isSubCluster() {return (flags & org.jgroups.common.Utils.SUB_CLUSTER) != 0;}
+
+    /** Returns the encoded message as a response, to be relayed unchanged */
+    public RelayResponse toResponse()       {return RelayResponse.message(data, offset, length);}
+
+    /**
+     * Returns the message in full form: the given fields are added in front of the fields of the message. The ids
+     * are kept; old clients skip them as unknown fields, and new clients use the full fields if present
+     * @param cluster The cluster name, or null if the message already has it
+     * @param dest The destination, or null if the message is sent to all or already has a destination
+     * @param sender The sender, or null if not known
+     */
+    public RelayResponse expand(String cluster, Address dest, Address sender) {
+        int fields=offset + length - body;
+        int size=fields + (cluster != null? CodedOutputStream.computeStringSize(Message.CLUSTER_NAME_FIELD_NUMBER, cluster) : 0)
+          + (dest != null? CodedOutputStream.computeMessageSize(Message.DESTINATION_FIELD_NUMBER, dest) : 0)
+          + (sender != null? CodedOutputStream.computeMessageSize(Message.SENDER_FIELD_NUMBER, sender) : 0);
+        byte[] buf=new byte[1 + CodedOutputStream.computeUInt32SizeNoTag(size) + size];
+        CodedOutputStream out=CodedOutputStream.newInstance(buf);
+        try {
+            out.writeTag(Response.MESSAGE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeUInt32NoTag(size);
+            if(cluster != null)
+                out.writeString(Message.CLUSTER_NAME_FIELD_NUMBER, cluster);
+            if(dest != null)
+                out.writeMessage(Message.DESTINATION_FIELD_NUMBER, dest);
+            if(sender != null)
+                out.writeMessage(Message.SENDER_FIELD_NUMBER, sender);
+            out.writeRawBytes(data, body, fields);
+            out.checkNoSpaceLeft();
+        }
+        catch(IOException e) { // cannot happen: the buffer has the exact size
+            throw new IllegalStateException(e);
+        }
+        return RelayResponse.message(buf, 0, buf.length);
+    }
+
+    /**
+     * Returns the message with a decompressed payload, for receivers which don't support compression. Unlike
+     * {@link #expand(String, Address, Address)}, this requires parsing and re-encoding the message
+     * @param cluster The cluster name to be added, or null
+     * @param dest The destination to be added, or null
+     * @param sender The sender to be added, or null
+     */
+    public RelayResponse decompress(Compressor compressor, String cluster, Address dest, Address sender)
+      throws IOException, DataFormatException {
+        Message msg=Message.parseFrom(CodedInputStream.newInstance(data, body, offset + length - body));
+        Message.Builder builder=compressor.decompress(msg).toBuilder();
+        if(cluster != null)
+            builder.setClusterName(cluster);
+        if(dest != null)
+            builder.setDestination(dest);
+        if(sender != null)
+            builder.setSender(sender);
+        byte[] buf=Response.newBuilder().setMessage(builder).build().toByteArray();
+        return RelayResponse.message(buf, 0, buf.length);
+    }
+
+    @Override
+    public String toString() {
+        if(isBatch())
+            return String.format("batch of %d msgs: %d bytes", batch.size(), length);
+        if(!isMessage())
+            return request.toString();
+        return String.format("msg to %s: %d bytes", dest != null && dest.getName() != null? dest.getName() : "<all>",
+                             length);
+    }
+
+    public static RelayRequest parse(byte[] data) throws IOException {
+        CodedInputStream in=CodedInputStream.newInstance(data);
+        int tag=in.readTag();
+        RelayRequest req=null;
+        if(tag == MESSAGE_TAG)
+            req=parseMessage(data, 0, in);
+        else if(tag == BATCH_TAG)
+            req=parseBatch(data, in);
+        // a message followed by other fields is not something our clients send; let protobuf sort it out
+        if(req == null || !in.isAtEnd())
+            return new RelayRequest(data, Request.parseFrom(data));
+        return req;
+    }
+
+    /** Parses the envelope of a message whose tag (at offset) has already been read */
+    protected static RelayRequest parseMessage(byte[] data, int offset, CodedInputStream in) throws IOException {
+        String        cluster="";
+        Address       dest=null;
+        List<Address> exclusions=Collections.emptyList();
+        int           cluster_id=0, dest_id=0, sender_id=0, uncompressed_size=0, flags=0;
+        int old_limit=in.pushLimit(in.readRawVarint32());
+        int body=in.getTotalBytesRead(), tag;
+        while((tag=in.readTag()) != 0) {
+            if(tag == CLUSTER_TAG)
+                cluster=in.readStringRequireUtf8();
+            else if(tag == CLUSTER_ID_TAG)
+                cluster_id=in.readInt32();
+            else if(tag == DEST_ID_TAG)
+                dest_id=in.readInt32();
+            else if(tag == SENDER_ID_TAG)
+                sender_id=in.readInt32();
+            else if(tag == UNCOMPRESSED_TAG)
+                uncompressed_size=in.readInt32();
+            else if(tag == FLAGS_TAG)
+                flags=in.readInt32();
+            else if(tag == DEST_TAG) {
+                Address.Builder b=Address.newBuilder();
+                in.readMessage(b, ExtensionRegistryLite.getEmptyRegistry());
+                dest=b.build();
+            }
+            else if(tag == HEADERS_TAG) {
+                Headers.Builder b=Headers.newBuilder();
+                in.readMessage(b, ExtensionRegistryLite.getEmptyRegistry());
+                exclusions=b.getRpcHdr().getExclusionListList();
+            }
+            else
+                in.skipField(tag); // the payload is skipped, not copied
+        }
+        in.popLimit(old_limit);
+        int end=in.getTotalBytesRead();
+        RelayRequest req=new RelayRequest(data, offset, end - offset, null, cluster, dest, exclusions, null);
+        req.cluster_id=cluster_id;
+        req.dest_id=dest_id;
+        req.sender_id=sender_id;
+        req.uncompressed_size=uncompressed_size;
+        req.flags=flags;
+        req.body=body;
+        return req;
+    }
+
+    protected static RelayRequest parseBatch(byte[] data, CodedInputStream in) throws IOException {
+        List<RelayRequest> msgs=new ArrayList<>();
+        int old_limit=in.pushLimit(in.readRawVarint32());
+        for(;;) {
+            int offset=in.getTotalBytesRead(), tag=in.readTag();
+            if(tag == 0)
+                break;
+            if(tag != BATCH_MSG_TAG)
+                return null;
+            msgs.add(parseMessage(data, offset, in));
+        }
+        in.popLimit(old_limit);
+        return new RelayRequest(data, msgs);
+    }
+
+    protected static byte[] readFully(InputStream in) throws IOException {
+        int available=in.available(); // gRPC's streams know their length
+        byte[] buf=new byte[Math.max(available, 1)];
+        int n, pos=0;
+        while(pos < buf.length && (n=in.read(buf, pos, buf.length - pos)) > 0)
+            pos+=n;
+        if(pos < buf.length)
+            return pos == 0? new byte[0] : Arrays.copyOf(buf, pos);
+        int b=in.read();
+        if(b == -1)
+            return buf;
+        ByteArrayOutputStream out=new ByteArrayOutputStream(buf.length * 2);
+        out.write(buf, 0, pos);
+        out.write(b);
+        return readRest(in, out);
+    }
+
+    protected static byte[] readRest(InputStream in, ByteArrayOutputStream out) throws IOException {
+        byte[] buf=new byte[4096];
+        int n;
+        while((n=in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    protected static class Marshaller implements MethodDescriptor.Marshaller<RelayRequest> {
+        public InputStream stream(RelayRequest req) {
+            return new ByteArrayInputStream(req.data);
+        }
+
+        public RelayRequest parse(InputStream in) {
+            try {
+                return RelayRequest.parse(readFully(in));
+            }
+            catch(IOException e) {
+                throw Status.INTERNAL.withDescription("invalid request").withCause(e).asRuntimeException();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.jgroups.upgrade_server;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A response sent by the UpgradeService: either a {@link Response} (views, acks etc), or an already encoded response,
+ * e.g. a relayed message, which is written to the stream as is
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class RelayResponse {
+    protected final Response rsp;  // null if data is set
+    protected final byte[]   data; // the encoded response is at data[offset .. offset+length-1]
+    protected final int      offset, length;
+    protected final boolean  message; // data is an encoded Response with a single message
+
+    // a message is encoded as field 1 (of Response), a batch as field 6 (Response.batch) with the messages as field 1
+    protected static final byte BATCH_TAG=(byte)(Response.BATCH_FIELD_NUMBER << 3 | 2); // length-delimited
+
+    public static final MethodDescriptor.Marshaller<RelayResponse> MARSHALLER=new Marshaller();
+
+    protected static final MethodDescriptor.Marshaller<Response> RSP_MARSHALLER=
+      ProtoUtils.marshaller(Response.getDefaultInstance());
+
+    protected RelayResponse(Response rsp, byte[] data, int offset, int length, boolean message) {
+        this.rsp=rsp;
+        this.data=data;
+        this.offset=offset;
+        this.length=length;
+        this.message=message;
+    }
+
+    public static RelayResponse of(Response rsp) {return new RelayResponse(rsp, null, 0, 0, false);}
+    public static RelayResponse raw(byte[] data) {return new RelayResponse(null, data, 0, data.length, false);}
+
+    /** Refers to a part of a buffer. The buffer must not be modified afterwards */
+    public static RelayResponse raw(byte[] data, int offset, int length) {
+        return new RelayResponse(null, data, offset, length, false);
+    }
+
+    /**
+     * Refers to an encoded message (a Response with only field 1 set), e.g. a message of a batch. The buffer must not
+     * be modified afterwards
+     */
+    public static RelayResponse message(byte[] data, int offset, int length) {
+        return new RelayResponse(null, data, offset, length, true);
+    }
+
+    /**
+     * Creates a single batch response from a number of messages (created with {@link #message(byte[],int,int)}). The
+     * encoded messages are copied back-to-back, which is the encoding of the messages field of a MessageBatch
+     * @param msgs The messages
+     * @param size The sum of the sizes of the messages
+     */
+    public static RelayResponse batch(List<RelayResponse> msgs, int size) {
+        byte[] buf=new byte[1 + varintSize(size) + size];
+        int pos=0;
+        buf[pos++]=BATCH_TAG;
+        for(int n=size; ; n>>>=7) {
+            if((n & ~0x7F) == 0) {
+                buf[pos++]=(byte)n;
+                break;
+            }
+            buf[pos++]=(byte)(n & 0x7F | 0x80);
+        }
+        for(RelayResponse m: msgs) {
+            System.arraycopy(m.data, m.offset, buf, pos, m.length);
+            pos+=m.length;
+        }
+        return raw(buf);
+    }
+
+    /**
+     * Encodes the response once, so that the same bytes can be written to the streams of many members. A response
+     * created with {@link #of(Response)} is encoded separately for every stream it is written to
+     */
+    public static RelayResponse encode(Response rsp) {return raw(rsp.toByteArray());}
+
+    public boolean  isRaw()     {return data != null;}
+    public boolean  isMessage() {return message;}
+    public Response response()  {return rsp;}
+    public byte[]   data()      {return data;}
+    public int      offset()    {return offset;}
+
+    /** The size of the encoded response */
+    public int size() {
+        return data != null? length : rsp.getSerializedSize();
+    }
+
+    protected static int varintSize(int n) {
+        int size=1;
+        while((n & ~0x7F) != 0) {
+            n>>>=7;
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return data != null? String.format("%d bytes", length) : rsp.toString();
+    }
+
+    protected static class Marshaller implements MethodDescriptor.Marshaller<RelayResponse> {
+        public InputStream stream(RelayResponse r) {
+            return r.data != null? new RawInputStream(r.data, r.offset, r.length) : RSP_MARSHALLER.stream(r.rsp);
+        }
+
+        public RelayResponse parse(InputStream in) {
+            return of(RSP_MARSHALLER.parse(in));
+        }
+    }
+
+    /** Lets gRPC copy the encoded response directly into its buffers */
+    protected static class RawInputStream extends ByteArrayInputStream implements KnownLength, Drainable {
+        protected RawInputStream(byte[] buf, int offset, int length) {
+            super(buf, offset, length);
+        }
+
+        public int drainTo(OutputStream out) throws IOException {
+            int len=count - pos;
+            out.write(buf, pos, len);
+            pos=count;
+            return len;
+        }
+    }
+}
@@ -19,12 +19,15 @@ public class UpgradeClient {
     protected UpgradeServiceGrpc.UpgradeServiceBlockingStub blocking_stub;
     protected StreamObserver<Request>                       send_stream; // for sending of messages and join requests
     protected final Address                                 local_addr;
-    protected View                                          view; // the current view
+    protected volatile View                                 view; // the current view
     protected static final String                           CLUSTER="upgrade-client";
 
 
     public UpgradeClient(String addr) {
-        local_addr=Address.newBuilder().setName(addr).build();
+        java.util.UUID uuid=java.util.UUID.randomUUID();
+        local_addr=Address.newBuilder().setName(addr)
+          .setUuid(UUID.newBuilder().setMostSig(uuid.getMostSignificantBits()).setLeastSig(uuid.getLeastSignificantBits()))
+          .build();
     }
 
 
@@ -103,13 +106,28 @@ public class UpgradeClient {
             return;
         String member_name=line.substring("unicast ".length(), index);
         String message=line.substring(index+1).trim();
-        Address dest=Address.newBuilder().setName(member_name).build();
+        Address dest=find(member_name);
+        if(dest == null) {
+            System.out.printf("member %s not found in view %s\n", member_name, view != null? Utils.print(view) : "n/a");
+            return;
+        }
         Message msg=Message.newBuilder().setClusterName(CLUSTER).setSender(local_addr).setDestination(dest)
           .setPayload(ByteString.copyFrom(message.getBytes())).build();
         Request r=Request.newBuilder().setMessage(msg).build();
         send_stream.onNext(r);
     }
 
+    /** The server looks up members by UUID, so the logical name is resolved to an address from the current view */
+    protected Address find(String name) {
+        View v=view;
+        if(v == null)
+            return null;
+        for(Address mbr: v.getMemberList())
+            if(name.equals(mbr.getName()))
+                return mbr;
+        return null;
+    }
+
     protected void handleView(View v) {
         System.out.printf("-- received view %s\n", Utils.print(v));
         UpgradeClient.this.view=v;
@@ -2,6 +2,8 @@ package org.jgroups.upgrade_server;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import org.jgroups.common.Compressor;
+import org.jgroups.common.Features;
 import org.jgroups.common.Utils;
 
 import java.io.InputStream;
@@ -13,8 +15,8 @@ import java.io.InputStream;
 public class UpgradeServer {
     protected Server server;
 
-    public void start(int port, String cert, String private_key, boolean verbose) throws Exception {
-        ServerBuilder<?> srv_builder=ServerBuilder.forPort(port).addService(new UpgradeService().verbose(verbose));
+    public void start(int port, String cert, String private_key, UpgradeService service) throws Exception {
+        ServerBuilder<?> srv_builder=ServerBuilder.forPort(port).addService(service.serviceDefinition());
         String encryption="plaintext - no encryption";
         if(cert != null || private_key != null) {
             if(cert == null || private_key == null)
@@ -27,6 +29,7 @@ public class UpgradeServer {
         server=srv_builder.build().start();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             server.shutdown();
+            service.stop();
             System.out.println("server was shut down");
         }));
         System.out.printf("-- UpgradeServer listening on %d (%s)\n", server.getPort(), encryption);
@@ -36,7 +39,7 @@ public class UpgradeServer {
     public static void main(String[] args) throws Exception {
         int port=50051;
         String cert=null, private_key=null;
-        boolean verbose=false;
+        UpgradeService service=new UpgradeService();
         UpgradeServer srv=new UpgradeServer();
         for(int i=0; i < args.length; i++) {
             if(args[i].equals("-p") || args[i].equals("-port")) {
@@ -52,18 +55,61 @@ public class UpgradeServer {
                 continue;
             }
             if(args[i].equals("-v")) {
-                verbose=true;
+                service.verbose(true);
+                continue;
+            }
+            if(args[i].equals("-queue_capacity")) {
+                service.queueCapacity(Integer.parseInt(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-backpressure")) {
+                service.backpressure(true);
+                continue;
+            }
+            if(args[i].equals("-max_queued_bytes")) {
+                service.maxQueuedBytes(Long.parseLong(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-view_delay")) {
+                service.viewDelay(Long.parseLong(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-max_pending_changes")) {
+                service.maxPendingChanges(Integer.parseInt(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-max_batch_size")) {
+                service.maxBatchSize(Integer.parseInt(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-features")) {
+                service.features(Features.parse(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-dictionary")) {
+                service.compressor().dictionary(Compressor.readDictionary(args[++i]));
+                continue;
+            }
+            if(args[i].equals("-max_data_streams")) {
+                service.maxDataStreams(Integer.parseInt(args[++i]));
                 continue;
             }
             help();
             return;
         }
-        srv.start(port, cert, private_key, verbose);
+        srv.start(port, cert, private_key, service);
     }
 
     protected static void help() {
         System.out.println("UpgradeServer [-port <server port>] [-cert cert-file] [-v] " +
-                             "[-key private-key-file]\n" +
+                             "[-key private-key-file] [-queue_capacity <max queued responses per member>]\n" +
+                             "[-backpressure] [-max_queued_bytes <max queued bytes per member (with -backpressure)>]\n" +
+                             "[-view_delay <min ms between views (0: no coalescing)>] " +
+                             "[-max_pending_changes <post a view after N membership changes>]\n" +
+                             "[-max_batch_size <max bytes of messages sent to a member as a batch (0: no batching)>]\n" +
+                             "[-features <features offered to clients, e.g. \"view-delta,batching,compact\" (default: all)>]\n" +
+                             "[-dictionary <compression dictionary used by the clients>] " +
+                             "[-max_data_streams <max data streams per member (default: 8)>]\n" +
                              "(the certificate and public/private key can be generated with bin/genkey.sh)");
     }
 }
@@ -1,14 +1,19 @@
 package org.jgroups.upgrade_server;
 
-import com.google.protobuf.ByteString;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jgroups.common.Compressor;
+import org.jgroups.common.Features;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiConsumer;
-import java.util.function.Predicate;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author Bela Ban
@@ -16,78 +21,172 @@ import java.util.function.Predicate;
  */
 public class UpgradeService extends UpgradeServiceGrpc.UpgradeServiceImplBase {
     protected final Map<String,SynchronizedMap> members=new ConcurrentHashMap<>();
+    protected final Map<Integer,SynchronizedMap> clusters=new ConcurrentHashMap<>(); // cluster-id -> members
+    protected final AtomicInteger               cluster_ids=new AtomicInteger();
+    // control sessions by session-id, to which data streams are attached (Features.DATA_STREAM)
+    protected final Map<Long,MemberSession>     control_sessions=new ConcurrentHashMap<>();
+    protected long                              attach_timeout=2000; // max ms to defer requests until attached
+    protected int                               max_data_streams=8;  // max number of data streams per member
     protected final Logger                      log=LogManager.getFormatterLogger(UpgradeService.class);
     protected boolean                           verbose;
+    protected int                               queue_capacity=1024; // max number of queued responses per member
+    protected boolean                           backpressure;        // use gRPC flow control
+    protected long                              max_queued_bytes=8_000_000; // per member, only used with backpressure
+    protected long                              view_delay;          // min time (ms) between views, 0: no coalescing
+    protected int                               max_pending_changes; // post a view after N changes, 0: no limit
+    protected int                               max_batch_size=64000; // max bytes of a batch to a member, 0: none
+    protected int                               features=Features.ALL; // the features offered to clients
+    // decompresses payloads for members which don't support compression (needs the dictionary used by the clients)
+    protected final Compressor                  compressor=new Compressor();
+    protected final LongAdder                   views_posted=new LongAdder(), views_suppressed=new LongAdder();
+    protected final LongAdder                   view_deltas=new LongAdder(); // number of deltas sent instead of views
+    protected final ExecutorService             writer_pool=Executors.newCachedThreadPool(new DaemonThreadFactory("writer"));
+    protected final ScheduledExecutorService    timer=
+      Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("timer"));
+
+    public boolean        verbose()                {return verbose;}
+    public UpgradeService verbose(boolean v)       {verbose=v; return this;}
+    public int            queueCapacity()          {return queue_capacity;}
+    public UpgradeService queueCapacity(int c)     {queue_capacity=c; return this;}
+    public boolean        backpressure()           {return backpressure;}
+    public UpgradeService backpressure(boolean b)  {backpressure=b; return this;}
+    public long           maxQueuedBytes()         {return max_queued_bytes;}
+    public UpgradeService maxQueuedBytes(long m)   {max_queued_bytes=m; return this;}
+    public long           viewDelay()              {return view_delay;}
+    public UpgradeService viewDelay(long d)        {view_delay=d; return this;}
+    public int            maxPendingChanges()      {return max_pending_changes;}
+    public UpgradeService maxPendingChanges(int m) {max_pending_changes=m; return this;}
+    public int            maxBatchSize()           {return max_batch_size;}
+    public UpgradeService maxBatchSize(int s)      {max_batch_size=s; return this;}
+    public int            features()               {return features;}
+    public UpgradeService features(int f)          {features=f; return this;}
+    public long           attachTimeout()          {return attach_timeout;}
+    public UpgradeService attachTimeout(long t)    {attach_timeout=t; return this;}
+    public int            maxDataStreams()         {return max_data_streams;}
+    public UpgradeService maxDataStreams(int m)    {max_data_streams=m; return this;}
+    public Compressor     compressor()             {return compressor;}
+    public long           viewsPosted()            {return views_posted.sum();}
+    public long           viewsSuppressed()        {return views_suppressed.sum();}
+    public long           viewDeltas()             {return view_deltas.sum();}
+
+    public void stop() {
+        writer_pool.shutdownNow();
+        timer.shutdownNow();
+        compressor.close();
+    }
 
-    public boolean        verbose()          {return verbose;}
-    public UpgradeService verbose(boolean v) {verbose=v; return this;}
+    /**
+     * Returns the service definition to be added to the server. Connect is bound to {@link #connectRelay(StreamObserver)},
+     * which uses {@link RelayRequest} and {@link RelayResponse} instead of {@link Request} and {@link Response}, so that
+     * messages are relayed without parsing or re-encoding them
+     */
+    public ServerServiceDefinition serviceDefinition() {
+        ServerServiceDefinition def=super.bindService();
+        MethodDescriptor<RelayRequest,RelayResponse> connect_method=UpgradeServiceGrpc.getConnectMethod()
+          .toBuilder(RelayRequest.MARSHALLER, RelayResponse.MARSHALLER).build();
+        ServerServiceDefinition.Builder builder=ServerServiceDefinition.builder(UpgradeServiceGrpc.SERVICE_NAME)
+          .addMethod(connect_method, ServerCalls.asyncBidiStreamingCall(this::connectRelay));
+        for(ServerMethodDefinition<?,?> m: def.getMethods()) {
+            if(!m.getMethodDescriptor().getFullMethodName().equals(connect_method.getFullMethodName()))
+                builder.addMethod(m);
+        }
+        return builder.build();
+    }
 
-    @Override
-    public StreamObserver<Request> connect(final StreamObserver<Response> responseObserver) {
-        return new StreamObserver<Request>() {
-            public void onNext(Request req) {
-                if(req.hasMessage()) {
-                    Message m=req.getMessage();
-                    ByteString pl=m.getPayload();
-                    int size=pl != null? pl.size() : 0;
-                    Address dest=m.hasDestination()? m.getDestination() : null;
-                    log.trace("msg from %s to %s: %s", m.getSender().getName(),
-                              dest != null && dest.getName() != null? dest.getName() : "<all>",
-                              String.format("%d bytes", size));
-
-                    //Context ctx=Context.current().fork();
-                    //Context prev=ctx.attach();
-                    //try {
-                        handleMessage(req.getMessage());
-                   // }
-                    //finally {
-                     //   ctx.detach(prev);
-                    //}
-                    return;
+    protected StreamObserver<RelayRequest> connectRelay(final StreamObserver<RelayResponse> responseObserver) {
+        final MemberSession session=new MemberSession(responseObserver, queue_capacity, writer_pool)
+          .errorHandler(this::handleSendFailure).maxBatchSize(max_batch_size);
+        if(backpressure)
+            session.flowControl(max_queued_bytes);
+        return new StreamObserver<RelayRequest>() {
+            public void onNext(RelayRequest req) {
+                MemberSession congested=null;
+                try {
+                    congested=handleRequest(req);
                 }
-                if(req.hasRegisterReq()) {
-                    RegisterView rv=req.getRegisterReq();
-                    log.debug("handleRegisterView(%s: %s)", rv.getClusterName(), Utils.print(rv.getView()));
-                    handleRegisterView(rv, responseObserver);
-                    return;
+                finally {
+                    session.requestNext(congested);
                 }
-                if(req.hasJoinReq()) {
-                    log.debug("handleJoinRequest(%s)", req.getJoinReq().getAddress().getName());
-
-                    //Context ctx=Context.current().fork();
-                    //Context prev=ctx.attach();
-                    //try {
-                        handleJoinRequest(req.getJoinReq(), responseObserver);
-                    //}
-                    //finally {
-                      //  ctx.detach(prev);
-                    //}
-                    return;
+            }
+
+            /** Returns a congested receiver of a relayed message, or null */
+            protected MemberSession handleRequest(RelayRequest r) {
+                if(r.isMessage()) {
+                    log.trace("msg from cluster %s: %s", r.cluster(), r);
+                    return handleMessage(r, session);
                 }
-                if(req.hasLeaveReq()) {
-                    log.debug("handleLeaveRequest(%s)", req.getLeaveReq().getLeaver().getName());
-                    handleLeaveRequest(req.getLeaveReq(), responseObserver);
-                    return;
+                if(r.isBatch()) {
+                    log.trace("%s", r);
+                    MemberSession congested=null;
+                    for(RelayRequest msg: r.batch()) {
+                        MemberSession c=handleMessage(msg, session);
+                        if(congested == null)
+                            congested=c;
+                    }
+                    return congested;
                 }
-                if(req.hasGetViewReq()) {
-                    String cluster=req.getGetViewReq().getClusterName();
-                    log.debug("handleGetViewRequest(%s)", cluster);
-                    handleGetViewRequest(cluster, responseObserver);
-                    return;
+                Request req=r.request();
+                if(req.hasHello()) {
+                    handleHello(req.getHello(), session);
+                    return null;
                 }
-                log.warn("request not known: %s", req);
+                // deferred until the member's data stream (if any) is attached, so that all messages to a new member
+                // are sent on the same stream
+                session.runWhenAttached(() -> handleControlRequest(req, session));
+                return null;
             }
 
             public void onError(Throwable t) {
-                remove(responseObserver);
+                remove(session);
             }
 
             public void onCompleted() {
-                remove(responseObserver);
+                remove(session);
             }
         };
     }
 
+    /** Handles all requests except messages and Hello */
+    protected void handleControlRequest(Request req, MemberSession session) {
+        if(req.hasRegisterReq()) {
+            RegisterView rv=req.getRegisterReq();
+            log.debug("handleRegisterView(%s: %s)", rv.getClusterName(), Utils.print(rv.getView()));
+            handleRegisterView(rv, session);
+            return;
+        }
+        if(req.hasJoinReq()) {
+            log.debug("handleJoinRequest(%s)", req.getJoinReq().getAddress().getName());
+
+            //Context ctx=Context.current().fork();
+            //Context prev=ctx.attach();
+            //try {
+                handleJoinRequest(req.getJoinReq(), session);
+            //}
+            //finally {
+              //  ctx.detach(prev);
+            //}
+            return;
+        }
+        if(req.hasLeaveReq()) {
+            log.debug("handleLeaveRequest(%s)", req.getLeaveReq().getLeaver().getName());
+            handleLeaveRequest(req.getLeaveReq(), session);
+            return;
+        }
+        if(req.hasGetViewReq()) {
+            String cluster=req.getGetViewReq().getClusterName();
+            log.debug("handleGetViewRequest(%s)", cluster);
+            handleGetViewRequest(cluster, session);
+            return;
+        }
+        if(req.hasLocalView()) {
+            LocalView lv=req.getLocalView();
+            log.debug("handleLocalView(%s: %s)", lv.getMember().getName(), Utils.print(lv.getMembersList()));
+            handleLocalView(lv, session);
+            return;
+        }
+        log.warn("request not known: %s", req);
+    }
+
 
     @Override
     public void dump(Void request, StreamObserver<DumpResponse> responseObserver) {
@@ -99,258 +198,638 @@ public class UpgradeService extends UpgradeServiceGrpc.UpgradeServiceImplBase {
         }
     }
 
-    protected void handleRegisterView(RegisterView rv, final StreamObserver<Response> responseObserver) {
+    /**
+     * Agrees on the features supported by both sides; sessions without a Hello use no features. If separate data
+     * streams were agreed on, the ack contains the session-id to which the client attaches its data streams, and
+     * requests are deferred until all of them have been attached (at most attach_timeout ms)
+     */
+    protected void handleHello(Hello hello, MemberSession session) {
+        if(hello.getAttach() != 0) {
+            attachDataStream(hello.getAttach(), session);
+            return;
+        }
+        int agreed=hello.getFeatures() & features;
+        session.features(agreed);
+        log.debug("handleHello(%s): agreed on %s", Features.print(hello.getFeatures()), Features.print(agreed));
+        HelloAck.Builder ack=HelloAck.newBuilder().setFeatures(agreed);
+        if(Features.isSet(agreed, Features.DATA_STREAM)) {
+            int num=Math.min(Math.max(1, hello.getDataStreams()), Math.max(1, max_data_streams));
+            ack.setSessionId(register(session)).setDataStreams(num);
+            session.awaitDataSessions(num);
+            timer.schedule(session::stopAwaiting, attach_timeout, TimeUnit.MILLISECONDS);
+        }
+        session.send(Response.newBuilder().setHelloAck(ack).build());
+    }
+
+    /**
+     * Attaches a data stream to the control stream with the given session-id. The ack has no features if the control
+     * stream was not found (or the data stream was attached too late), and the data stream is then closed
+     */
+    protected void attachDataStream(long session_id, MemberSession data) {
+        MemberSession control=control_sessions.get(session_id);
+        if(control == null || !control.attach(data)) {
+            log.warn("failed attaching data stream: control stream %d not found or attach timeout (%d ms) elapsed",
+                     session_id, attach_timeout);
+            data.send(Response.newBuilder().setHelloAck(HelloAck.newBuilder().setFeatures(0)).build());
+            data.close();
+            return;
+        }
+        log.debug("attached data stream %d to control stream %d", data.index(), session_id);
+        data.send(Response.newBuilder().setHelloAck(HelloAck.newBuilder().setFeatures(data.features())).build());
+    }
+
+    /** Registers a control session under a new (random, non-zero) session-id, and returns the id */
+    protected long register(MemberSession session) {
+        for(;;) {
+            long id=ThreadLocalRandom.current().nextLong();
+            if(id != 0 && control_sessions.putIfAbsent(id, session) == null) {
+                session.id(id);
+                return id;
+            }
+        }
+    }
+
+    protected void handleRegisterView(RegisterView rv, final MemberSession session) {
         final String        cluster=rv.getClusterName();
         final List<Address> mbrs=rv.getView().getMemberList();
         final long          view_id=rv.getView().getViewId().getId();
         final Address       local_addr=rv.getLocalAddr();
-        SynchronizedMap     m=members.computeIfAbsent(cluster, k -> new SynchronizedMap(cluster));
+        SynchronizedMap     m=getOrCreate(cluster);
         for(Address addr: mbrs)
             m.put(addr, null, false);
-        m.put(local_addr, responseObserver, true);
+        m.put(local_addr, session, true);
         m.setViewId(view_id);
+        m.invalidateView(); // GetView has to include the registered members
         // send response:
         RegisterViewOk ack=RegisterViewOk.newBuilder().build();
         Response rsp=Response.newBuilder().setRegViewOk(ack).build();
-
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized(responseObserver) { // responseObserver always points to the same object
-            responseObserver.onNext(rsp);
-        }
+        session.send(rsp);
     }
 
-    protected void handleJoinRequest(JoinRequest join_req, StreamObserver<Response> responseObserver) {
+    protected void handleJoinRequest(JoinRequest join_req, MemberSession session) {
         final String    cluster=join_req.getClusterName();
         final Address   joiner=join_req.getAddress();
-        SynchronizedMap m=members.computeIfAbsent(cluster, k -> new SynchronizedMap(cluster));
-        if(m.put(joiner, responseObserver, true)) {
+        SynchronizedMap m=getOrCreate(cluster);
+        boolean joined=m.put(joiner, session, true);
+        if(join_req.hasLocalView())
+            handleLocalView(join_req.getLocalView(), session);
+        if(joined) {
             if(verbose)
                 System.out.printf("-- %s joined: %s\n", joiner.getName(), m);
-            m.postView();
+            m.viewChanged();
         }
     }
 
-    protected void handleLeaveRequest(LeaveRequest leave_req, StreamObserver<Response> responseObserver) {
+    /**
+     * Records the local view of a member (only if the session is a member of the cluster). Multicasts marked by the
+     * member as sent to its local cluster are not relayed to the members of this view
+     */
+    protected void handleLocalView(LocalView lv, MemberSession session) {
+        if(session.memberships().containsKey(lv.getClusterName()))
+            session.localView(lv.getClusterName(), lv);
+    }
+
+    protected void handleLeaveRequest(LeaveRequest leave_req, MemberSession session) {
         final String  cluster=leave_req.getClusterName();
         Address       leaver=leave_req.getLeaver();
         if(leaver == null)
             return;
 
-        // responseObserver.onCompleted();
-        StreamObserver<Response> obs=null;
+        MemberSession s=null;
         SynchronizedMap m=members.get(cluster);
-        if(m != null && (obs=m.remove(leaver)) != null) {
-            obs.onCompleted(); // obs == responseObserver
+        if(m != null && (s=m.remove(leaver)) != null) {
+            s.close(); // s == session
             if(m.isEmpty()) {
                 if(verbose)
                     System.out.printf("-- %s left: []\n", leaver.getName());
-                members.remove(cluster);
+                removeCluster(cluster);
             }
             else {
                 if(verbose)
                     System.out.printf("-- %s left: %s\n", leaver.getName(), m);
-                m.postView();
+                m.viewChanged();
             }
         }
     }
 
-    protected void handleGetViewRequest(String cluster, StreamObserver<Response> responseObserver) {
+    protected void handleGetViewRequest(String cluster, MemberSession session) {
         SynchronizedMap map=members.get(Objects.requireNonNull(cluster));
-        View view=map != null? map.getView() : null;
-        if(view == null) {
+        RelayResponse rsp=map != null? map.getViewResponse() : null;
+        if(rsp == null) {
             log.warn("no view was found for cluster %s", cluster);
             return;
         }
-        // send response
-        GetViewResponse rsp=GetViewResponse.newBuilder().setView(view).build();
-        Response r=Response.newBuilder().setGetViewRsp(rsp).build();
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized(responseObserver) { // // responseObserver always points to the same object
-            responseObserver.onNext(r);
-        }
+        session.send(rsp);
     }
 
-    protected void handleMessage(Message msg) {
-        String cluster=msg.getClusterName();
-        Address dest=msg.hasDestination()? msg.getDestination() : null;
-
-        SynchronizedMap map=members.get(cluster);
+    /**
+     * Relays a message and returns a congested receiver, or null if no receiver is congested. Priority messages
+     * (OOB or INTERNAL) are relayed on the receivers' priority lanes, and never report a congested receiver, so that
+     * they don't hold back the sender's stream
+     * @param session The session the message was received on: its index selects the receivers' data streams, and
+     *                its member is left out of a multicast which it delivered locally (or sent to its local cluster)
+     */
+    protected MemberSession handleMessage(RelayRequest msg, MemberSession session) {
+        String cluster=msg.cluster();
+        Address dest=msg.destination();
+
+        SynchronizedMap map=msg.clusterId() > 0? clusters.get(msg.clusterId()) : members.get(cluster);
         if(map == null) {
-            System.err.printf("no members found for cluster %s\n", cluster);
-            return;
+            System.err.printf("no members found for cluster %s\n", msg.clusterId() > 0? msg.clusterId() : cluster);
+            return null;
         }
 
-        if(dest == null)
-            relayToAll(msg, map);
-        else
-            relayTo(dest, msg, map);
+        if(dest != null || msg.destId() > 0)
+            return relayTo(dest, msg, map, session.index());
+        MemberSession sender=!msg.isLocalLoopback() && !msg.isSubCluster()? null
+          : session.control() != null? session.control() : session;
+        return relayToAll(msg, map, session.index(), sender);
     }
 
 
-    protected void relayToAll(Message msg, SynchronizedMap m) {
+    /** @param sender The session of the sender if it delivered the message locally, or null */
+    protected MemberSession relayToAll(RelayRequest msg, SynchronizedMap m, int stream, MemberSession sender) {
         if(!m.isEmpty()) {
-            Response response=Response.newBuilder().setMessage(msg).build();
-
             // need to honor the exclusion list in the header if present
-            Headers hdrs=msg.getHeaders();
-            RpcHeader rpcHeader = hdrs != null && hdrs.hasRpcHdr()? hdrs.getRpcHdr() : null;
-            Set<Address> exclusions=new HashSet<>();
-            if(rpcHeader != null && rpcHeader.getExclusionListList() != null && !rpcHeader.getExclusionListList().isEmpty())
-                exclusions.addAll(rpcHeader.getExclusionListList());
-            m.forAll(response, exclusions, (__,v) -> remove(v));
+            return m.forAll(msg, stream, sender);
         }
+        return null;
     }
 
-    protected void relayTo(Address dest, Message msg, SynchronizedMap m) {
-        StreamObserver<Response> obs=m.get(dest);
-        if(obs == null) {
-            System.err.printf("unicast destination %s (uuid: %s) not found; dropping message\n",
-                              dest.getName(), dest.getUuid());
-            return;
-        }
-        Response response=Response.newBuilder().setMessage(msg).build();
-        try {
-            synchronized(obs) {
-                obs.onNext(response);
-            }
-        }
-        catch(Throwable t) {
-            System.err.printf("exception relaying message to %s (removing observer): %s\n", dest.getName(), t);
-            remove(obs);
+    protected MemberSession relayTo(Address dest, RelayRequest msg, SynchronizedMap m, int stream) {
+        MemberSession s=dest != null? m.get(dest) : m.get(msg.destId());
+        boolean priority=msg.isPriority();
+        if(s != null && !priority)
+            s=s.data(stream);
+        if(s == null) {
+            if(dest != null)
+                System.err.printf("unicast destination %s (uuid: %s) not found; dropping message\n",
+                                  dest.getName(), dest.getUuid());
+            else
+                System.err.printf("unicast destination with id %d not found; dropping message\n", msg.destId());
+            return null;
         }
+        boolean ids_known=!msg.isCompact() || m.knowsIds(dest, msg.destId(), msg);
+        RelayResponse rsp=m.response(msg, s, ids_known, null);
+        if(rsp != null)
+            s.send(rsp, priority);
+        return !priority && s.congested()? s : null;
     }
 
+    /** Called by the writer of a session when writing to its stream failed */
+    protected void handleSendFailure(MemberSession s, Throwable t) {
+        log.warn("failed relaying message (removing session): %s", t);
+        remove(s);
+    }
 
-    protected void remove(StreamObserver<Response> observer) {
-        if(observer == null)
+    protected void remove(MemberSession session) {
+        if(session == null)
             return;
+        session.resumeSenders();
+        if(session.control() != null) { // a data stream: messages are sent on the control stream instead
+            session.control().detach(session);
+            session.close();
+            return;
+        }
+        session.discardPending();
+        if(session.id() != 0)
+            control_sessions.remove(session.id(), session);
+        session.close(); // responses are no longer queued; also closes the data sessions
 
-        for(Map.Entry<String,SynchronizedMap> entry: members.entrySet()) {
+        // only the clusters the session registered with are affected; one view is posted per cluster
+        for(Map.Entry<String,Address> entry: session.memberships().entrySet()) {
             String cluster=entry.getKey();
-            SynchronizedMap m=entry.getValue();
-            boolean removed=m.removeIf(val -> Objects.equals(val, observer));
-            if(removed) {
+            SynchronizedMap m=members.get(cluster);
+            if(m != null && m.remove(entry.getValue(), session)) {
                 if(m.isEmpty())
-                    members.remove(cluster);
+                    removeCluster(cluster);
                 else
-                    m.postView();
+                    m.viewChanged();
             }
         }
     }
 
 
+    /** Returns the members of a cluster, creating them (with a new cluster-id) if absent */
+    protected SynchronizedMap getOrCreate(String cluster) {
+        return members.computeIfAbsent(cluster, k -> {
+            SynchronizedMap m=new SynchronizedMap(k, cluster_ids.incrementAndGet());
+            clusters.put(m.id(), m);
+            return m;
+        });
+    }
+
+    protected void removeCluster(String cluster) {
+        SynchronizedMap m=members.remove(cluster);
+        if(m != null)
+            clusters.remove(m.id(), m);
+    }
+
     protected String dumpDiagnostics() {
         StringBuilder sb=new StringBuilder();
         sb.append("members:\n");
         dumpViews(sb);
+        sb.append(String.format("\nviews posted: %,d, suppressed (coalesced): %,d, deltas sent: %,d\n",
+                                viewsPosted(), viewsSuppressed(), viewDeltas()));
+        sb.append(String.format("payloads decompressed for members without compression: %,d (avg %.2f us)\n",
+                                compressor.decompressed(), compressor.avgDecompressTime()));
         return sb.append("\n").toString();
     }
 
 
     protected void dumpViews(final StringBuilder sb) {
         for(SynchronizedMap m: members.values())
-            sb.append(m.toString()).append("\n");
+            sb.append(m.toString()).append(" ").append(m.printViewStats()).append("\n").append(m.printSessions());
     }
 
     protected class SynchronizedMap {
-        protected final String                                cluster;
-        protected final Map<Address,StreamObserver<Response>> map=new LinkedHashMap<>();
-        protected long                                        view_id;
-
-        public SynchronizedMap(String cluster) {
+        protected final String                     cluster;
+        protected final int                        id;              // referred to by messages in compact form
+        protected final MemberIndex                map=new MemberIndex();
+        protected long                             view_id;
+        protected final Object                     view_lock=new Object(); // views are posted in view-id order
+        // view coalescing (if view_delay > 0); guarded by this
+        protected int                              pending_changes; // membership changes not yet posted in a view
+        protected long                             last_view;       // time (ms) the last view was posted
+        protected ScheduledFuture<?>               view_task;       // posts the pending changes when the delay expires
+        // the current view, created once per membership change and shared by broadcasts, GetView responses and dumps.
+        // Also the base of the next delta
+        protected View                             view;
+        protected RelayResponse                    get_view_rsp;    // encoded GetViewResponse for view (on demand)
+        protected long                             num_views, num_suppressed;
+
+        public SynchronizedMap(String cluster, int id) {
             this.cluster=cluster;
+            this.id=id;
         }
 
-        protected String                                cluster()         {return cluster;}
-        protected synchronized StreamObserver<Response> get(Address mbr)  {return map.get(mbr);}
-        protected synchronized boolean                  isEmpty()         {return map.isEmpty();}
-        protected synchronized long                     getViewId()       {return view_id;}
-        protected synchronized long                     getNewViewId()    {return ++view_id;}
-        protected synchronized long                     setViewId(long v) {return view_id=Math.max(view_id, v);}
+        protected String                     cluster()         {return cluster;}
+        protected int                        id()              {return id;}
+        protected synchronized MemberSession get(Address mbr)  {return map.get(mbr);}
+        protected synchronized MemberSession get(int mbr_id)   {return map.getSession(mbr_id);}
+        protected synchronized boolean       isEmpty()         {return map.isEmpty();}
+        protected synchronized long          getViewId()       {return view_id;}
+        protected synchronized long          getNewViewId()    {return ++view_id;}
+        protected synchronized long          setViewId(long v) {return view_id=Math.max(view_id, v);}
 
         @Override
         public synchronized String toString() {
-            return String.format("%s: %s", cluster, Utils.printView(view_id, map.keySet()));
+            if(view != null && pending_changes == 0)
+                return String.format("%s: %s", cluster, Utils.printView(view.getViewId().getId(), view.getMemberList()));
+            return String.format("%s: %s", cluster, Utils.printView(view_id, map.addresses()));
         }
 
-        protected synchronized boolean put(Address joiner, StreamObserver<Response> o, boolean override) {
-            StreamObserver<Response> prev=override? map.put(joiner, o) : map.putIfAbsent(joiner, o);
-            return prev == null;
+        protected synchronized String printViewStats() {
+            return String.format("(views posted: %,d, suppressed: %,d%s)", num_views, num_suppressed,
+                                 pending_changes > 0? String.format(", pending changes: %d", pending_changes) : "");
         }
 
-        protected synchronized StreamObserver<Response> remove(Address leaver) {
-            return map.remove(leaver);
+        /** Prints the queue depth and capacity (and the sub-cluster, if announced) of each member */
+        protected synchronized String printSessions() {
+            StringBuilder sb=new StringBuilder();
+            map.forEach((addr, s) -> {
+                LocalView lv=s != null? s.localView(cluster) : null;
+                sb.append(String.format("  %s: %s%s\n", addr.getName(), s != null? s : "n/a (not connected)",
+                                        lv != null? String.format(" (sub-cluster %s: %d local members)",
+                                                                  lv.getSubCluster(), lv.getMembersCount()) : ""));
+            });
+            return sb.toString();
         }
 
-        protected synchronized boolean removeIf(Predicate<? super StreamObserver<Response>> predicate) {
-            return map.values().removeIf(predicate);
+        /** Adds a member and records the membership in its session (for removal when the session is closed) */
+        protected synchronized boolean put(Address joiner, MemberSession s, boolean override) {
+            MemberSession prev=map.get(joiner);
+            boolean rc=map.put(joiner, s, override);
+            MemberSession cur=map.get(joiner);
+            if(prev != null && prev != cur) // the member reconnected on a different stream
+                prev.removeMembership(cluster, joiner);
+            if(cur != null)
+                cur.addMembership(cluster, joiner);
+            return rc;
         }
 
-        protected void postView() {
-            View new_view=getView();
-            if(new_view == null)
-                return;
+        protected synchronized MemberSession remove(Address leaver) {
+            MemberSession s=map.remove(leaver);
+            if(s != null)
+                s.removeMembership(cluster, leaver);
+            return s;
+        }
 
-            log.debug("new view: %s", Utils.printView(view_id, new_view.getMemberList()));
-            Response response=Response.newBuilder().setView(new_view).build();
-            forAll(response, null, null);
+        /** Removes a member only if it is still associated with the given session */
+        protected synchronized boolean remove(Address mbr, MemberSession s) {
+            if(s == null || map.get(mbr) != s)
+                return false;
+            map.remove(mbr);
+            s.removeMembership(cluster, mbr);
+            return true;
         }
 
-        protected View getView() {
-            View.Builder view_builder=View.newBuilder();
-            Address coord=null;
+        /**
+         * Called on a membership change. Without coalescing (view_delay == 0), a view is posted immediately. Otherwise,
+         * at most one view is posted every view_delay ms (or when max_pending_changes changes have accumulated), and
+         * all changes that happen in the meantime are merged into that view
+         */
+        protected void viewChanged() {
+            if(view_delay <= 0) {
+                postView();
+                return;
+            }
+            boolean post_now;
             synchronized(this) {
-                if(map == null || map.isEmpty())
-                    return null;
-                for(Address mbr: map.keySet()) {
-                    view_builder.addMember(mbr);
-                    if(coord == null)
-                        coord=mbr;
+                pending_changes++;
+                post_now=max_pending_changes > 0 && pending_changes >= max_pending_changes;
+                if(view_task == null && !post_now) {
+                    long wait=last_view + view_delay - System.currentTimeMillis();
+                    if(wait > 0)
+                        view_task=timer.schedule(this::postPendingChanges, wait, TimeUnit.MILLISECONDS);
+                    else
+                        post_now=true;
+                }
+                if(post_now && view_task != null) {
+                    view_task.cancel(false);
+                    view_task=null;
                 }
             }
-            view_builder.setViewId(ViewId.newBuilder().setCreator(coord).setId(getNewViewId()).build());
-            return view_builder.build();
+            if(post_now)
+                postView();
         }
 
-        protected void forAll(Response response, Set<Address> exclusions,
-                              BiConsumer<Address,StreamObserver<Response>> exception_handler) {
-            List<Record> observers=new ArrayList<>();
+        /** Run by the timer when the delay has expired */
+        protected void postPendingChanges() {
             synchronized(this) {
-                for(Map.Entry<Address,StreamObserver<Response>> entry: map.entrySet()) {
-                    StreamObserver<Response> obs=entry.getValue();
-                    if(exclusions == null || !exclusions.contains(entry.getKey()))
-                        observers.add(new Record(entry.getKey(), obs));
-                }
+                view_task=null;
+                if(pending_changes == 0) // already posted
+                    return;
             }
-            // iterate through all members outside the lock scope
-            for(Record r: observers) {
-                synchronized(r.obs) {
-                    try {
-                        r.obs().onNext(response);
-                    }
-                    catch(Throwable t) {
-                        log.warn("failed relaying message to %s: %s", r.addr().getName(), t);
-                        if(exception_handler != null)
-                            exception_handler.accept(r.addr(), r.obs());
+            postView();
+        }
+
+        protected void postView() {
+            synchronized(view_lock) {
+                View                new_view;
+                ViewDelta           delta;
+                List<MemberSession> full=new ArrayList<>(), deltas=new ArrayList<>(); // the members of the view
+                synchronized(this) {
+                    int changes=pending_changes;
+                    pending_changes=0;
+                    last_view=System.currentTimeMillis();
+                    if((new_view=createView()) == null)
+                        return;
+                    delta=view != null? createDelta(view, new_view) : null;
+                    map.collectForView(delta != null? delta.getBaseId() : -1, new_view.getViewId().getId(), deltas, full);
+                    view=new_view;
+                    get_view_rsp=null;
+                    num_views++;
+                    views_posted.increment();
+                    if(changes > 1) {
+                        num_suppressed+=changes - 1;
+                        views_suppressed.add(changes - 1);
                     }
                 }
+                log.debug("new view: %s", Utils.printView(new_view.getViewId().getId(), new_view.getMemberList()));
+                // the view and the delta are each encoded once for all members
+                if(!full.isEmpty())
+                    send(full, RelayResponse.encode(Response.newBuilder().setView(new_view).build()), false);
+                if(!deltas.isEmpty()) {
+                    send(deltas, RelayResponse.encode(Response.newBuilder().setViewDelta(delta).build()), false);
+                    view_deltas.add(deltas.size());
+                }
+                // from now on, messages in compact form referring to the members of the view are not expanded
+                int max_id=0;
+                for(int mbr_id: new_view.getMemberIdList())
+                    max_id=Math.max(max_id, mbr_id);
+                synchronized(this) {
+                    map.viewSent(new_view.getViewId().getId(), max_id);
+                }
             }
         }
 
+        /**
+         * Returns the current view. Doesn't create a new view (or view-id), unless no view has been posted yet, e.g.
+         * when only RegisterView was received
+         */
+        protected synchronized View getView() {
+            if(view == null)
+                view=createView();
+            return view;
+        }
 
-        protected final class Record {
-            final Address address;
-            final StreamObserver<Response> obs;
+        /**
+         * Discards the current view (without posting a new one), e.g. after members were added by a RegisterView. The
+         * next GetView creates a new view, and the next posted view is sent in full
+         */
+        protected synchronized void invalidateView() {
+            view=null;
+            get_view_rsp=null;
+        }
 
-            private Record(Address address, StreamObserver<Response> obs) {
-                this.address=Objects.requireNonNull(address);
-                this.obs=Objects.requireNonNull(obs);
+        /** Returns the encoded GetViewResponse for the current view */
+        protected synchronized RelayResponse getViewResponse() {
+            View v=getView();
+            if(v == null)
+                return null;
+            if(get_view_rsp == null) {
+                GetViewResponse rsp=GetViewResponse.newBuilder().setView(v).build();
+                get_view_rsp=RelayResponse.encode(Response.newBuilder().setGetViewRsp(rsp).build());
             }
+            return get_view_rsp;
+        }
 
-            private Address                  addr() {return address;}
-            private StreamObserver<Response> obs()  {return obs;}
+        /** Creates a new view (with a new view-id) from the current members */
+        protected synchronized View createView() {
+            if(map.isEmpty())
+                return null;
+            View.Builder view_builder=View.newBuilder().setClusterId(id);
+            map.forEachId((mbr, mbr_id) -> view_builder.addMember(mbr).addMemberId(mbr_id));
+            Address coord=map.first();
+            return view_builder.setViewId(ViewId.newBuilder().setCreator(coord).setId(getNewViewId())).build();
         }
 
+        /**
+         * Adds the message to the queues of all members (minus exclusions); doesn't block unless a queue is full.
+         * A message in compact form or with a compressed payload is converted (once) for members which don't
+         * support it. A message in compact form is also expanded for members which have not yet been sent the view
+         * announcing its ids, as they could not resolve them
+         * @param stream The index of the sender's stream; selects the data stream of each member (unless the message
+         *               is a priority message, which is sent to the control stream)
+         * @param sender The (control) session of the sender, which is excluded, or null. If the sender multicast the
+         *               message to its local cluster, the members of its local view are excluded, too
+         * @return The first congested member, or null if no member is congested
+         */
+        protected MemberSession forAll(RelayRequest msg, int stream, MemberSession sender) {
+            List<MemberSession> sessions;
+            LocalView lv=sender != null && msg.isSubCluster()? sender.localView(cluster) : null;
+            List<Address> exclusions=msg.exclusions();
+            if(lv != null) {
+                if(exclusions.isEmpty())
+                    exclusions=lv.getMembersList();
+                else {
+                    exclusions=new ArrayList<>(exclusions);
+                    exclusions.addAll(lv.getMembersList());
+                }
+            }
+            List<MemberSession> unknown=msg.isCompact()? new ArrayList<>() : null;
+            synchronized(this) {
+                sessions=map.collect(exclusions, sender, new ArrayList<>(map.size()), requiredId(msg), unknown);
+            }
+            boolean priority=msg.isPriority();
+            if(!priority) {
+                sessions.replaceAll(s -> s.data(stream));
+                if(unknown != null)
+                    unknown.replaceAll(s -> s.data(stream));
+            }
+            // enqueue outside the lock scope
+            if(!msg.isCompact() && !msg.isCompressed())
+                return send(sessions, msg.toResponse(), priority);
+            RelayResponse[] responses=new RelayResponse[4];
+            MemberSession congested=send(sessions, msg, true, responses, priority);
+            if(unknown != null && !unknown.isEmpty()) {
+                MemberSession c=send(unknown, msg, false, responses, priority);
+                if(congested == null)
+                    congested=c;
+            }
+            return congested;
+        }
+
+        /** Sends the message to each session, converting it if needed (see {@link #response}) */
+        protected MemberSession send(List<MemberSession> sessions, RelayRequest msg, boolean ids_known,
+                                     RelayResponse[] responses, boolean priority) {
+            MemberSession congested=null;
+            for(MemberSession s: sessions) {
+                RelayResponse rsp=response(msg, s, ids_known, responses);
+                if(rsp != null)
+                    s.send(rsp, priority);
+                if(congested == null && !priority && s.congested())
+                    congested=s;
+            }
+            return congested;
+        }
+
+        /** True if the member with the given address (or id, if addr is null) knows the ids of a message */
+        protected synchronized boolean knowsIds(Address addr, int mbr_id, RelayRequest msg) {
+            return (addr != null? map.maxId(addr) : map.maxId(mbr_id)) >= requiredId(msg);
+        }
+
+        /**
+         * Returns the message as sent to s: a message in compact form is expanded and a compressed payload is
+         * decompressed if s doesn't support it. Returns null if the payload could not be decompressed
+         * @param ids_known False if the member has not yet been sent the view announcing the ids of the message, which
+         *                  is then expanded
+         * @param responses Caches the conversions (by the features s lacks) when sending to multiple members; may be null
+         */
+        protected RelayResponse response(RelayRequest msg, MemberSession s, boolean ids_known,
+                                         RelayResponse[] responses) {
+            int conversion=(msg.isCompact() && (!ids_known || !s.supports(Features.COMPACT))? 1 : 0)
+              | (msg.isCompressed() && !s.supports(Features.COMPRESSION)? 2 : 0);
+            if(conversion == 0)
+                return msg.toResponse();
+            if(responses != null && responses[conversion] != null)
+                return responses[conversion];
+            RelayResponse rsp=convert(msg, (conversion & 1) != 0, (conversion & 2) != 0);
+            if(responses != null)
+                responses[conversion]=rsp;
+            return rsp;
+        }
+
+        /** Converts a message in compact form to full form and/or decompresses its payload */
+        protected RelayResponse convert(RelayRequest msg, boolean expand, boolean decompress) {
+            String name=expand && msg.cluster().isEmpty()? cluster : null;
+            Address dest=null, sender=null;
+            if(expand) {
+                synchronized(this) {
+                    dest=msg.destination() == null && msg.destId() > 0? map.getAddress(msg.destId()) : null;
+                    sender=msg.senderId() > 0? map.getAddress(msg.senderId()) : null;
+                }
+            }
+            if(!decompress)
+                return msg.expand(name, dest, sender);
+            try {
+                return msg.decompress(compressor, name, dest, sender);
+            }
+            catch(Exception e) {
+                log.error("failed decompressing payload for members which don't support compression: %s", e);
+                return null;
+            }
+        }
+
+        /**
+         * Adds the response to the (priority) queues of the given sessions and returns the first congested one (or
+         * null); no session is reported as congested for a priority response
+         */
+        protected MemberSession send(List<MemberSession> sessions, RelayResponse response, boolean priority) {
+            MemberSession congested=null;
+            for(MemberSession s: sessions) {
+                s.send(response, priority);
+                if(congested == null && !priority && s.congested())
+                    congested=s;
+            }
+            return congested;
+        }
+    }
+
+    /**
+     * Returns the highest member id a member must know to read the message in compact form (any id if only the
+     * cluster is referred to by id), or 0 if the message is not in compact form
+     */
+    protected static int requiredId(RelayRequest msg) {
+        return msg.isCompact()? Math.max(1, Math.max(msg.senderId(), msg.destId())) : 0;
+    }
+
+    /**
+     * Creates the delta between two views, or returns null if next cannot be expressed as a delta (the members of
+     * next have to be the remaining members of prev in the same order, followed by the joined members), or if the
+     * delta is not smaller than the full view
+     */
+    protected static ViewDelta createDelta(View prev, View next) {
+        Set<Object> prev_mbrs=new HashSet<>(prev.getMemberCount()), next_mbrs=new HashSet<>(next.getMemberCount());
+        for(Address mbr: prev.getMemberList())
+            prev_mbrs.add(org.jgroups.common.Utils.key(mbr));
+        for(Address mbr: next.getMemberList())
+            next_mbrs.add(org.jgroups.common.Utils.key(mbr));
+        ViewDelta.Builder delta=ViewDelta.newBuilder().setViewId(next.getViewId()).setBaseId(prev.getViewId().getId());
+        List<Object> remaining=new ArrayList<>(prev.getMemberCount());
+        for(Address mbr: prev.getMemberList()) {
+            Object key=org.jgroups.common.Utils.key(mbr);
+            if(next_mbrs.contains(key))
+                remaining.add(key);
+            else
+                delta.addLeft(mbr);
+        }
+        if(next.getClusterId() > 0)
+            delta.setClusterId(next.getClusterId());
+        boolean ids=next.getMemberIdCount() == next.getMemberCount();
+        for(int i=0; i < next.getMemberCount(); i++) {
+            Address mbr=next.getMember(i);
+            Object key=org.jgroups.common.Utils.key(mbr);
+            if(i < remaining.size()) {
+                if(!remaining.get(i).equals(key))
+                    return null;
+            }
+            else if(prev_mbrs.contains(key))
+                return null;
+            else {
+                delta.addJoined(mbr);
+                if(ids)
+                    delta.addJoinedId(next.getMemberId(i));
+            }
+        }
+        ViewDelta d=delta.build();
+        return d.getSerializedSize() < next.getSerializedSize()? d : null;
+    }
+
+    protected static class DaemonThreadFactory implements ThreadFactory {
+        protected final String        prefix;
+        protected final AtomicInteger counter=new AtomicInteger();
+
+        protected DaemonThreadFactory(String prefix) {
+            this.prefix=prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t=new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
     }
 
 }
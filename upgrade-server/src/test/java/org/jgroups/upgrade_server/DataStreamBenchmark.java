@@ -0,0 +1,173 @@
+package org.jgroups.upgrade_server;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import org.jgroups.common.Features;
+import org.jgroups.common.GrpcClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput of messages relayed by an UpgradeService (in the same process) with different numbers of
+ * data streams ({@link Features#DATA_STREAM}) per member. The first member sends messages from multiple threads;
+ * with a single data stream, all messages of a member are serialized onto one HTTP/2 stream, with multiple data
+ * streams multicasts are spread over the streams by sending thread, and unicasts by destination. Each number of data
+ * streams is run without and with bundling (the bundler sends the messages of each data stream in batches).
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class DataStreamBenchmark {
+    protected int       port=50099, members=2, threads=8, num_msgs=200_000, payload_size=1000;
+    protected boolean   unicasts; // send unicasts to the other members (round-robin) instead of multicasts
+    protected int[]     data_streams={1, 2, 4, 8};
+    protected boolean[] bundling={false, true};
+
+    protected void start() throws Exception {
+        UpgradeService service=new UpgradeService();
+        Server server=ServerBuilder.forPort(port).addService(service.serviceDefinition()).build().start();
+        try {
+            System.out.printf("-- %d members, %d sender threads, %,d %s of %,d bytes\n", members, threads, num_msgs,
+                              unicasts? "unicasts" : "multicasts", payload_size);
+            run(data_streams[0], bundling[0], num_msgs / 5, false); // warmup
+            for(boolean bundle: bundling)
+                for(int streams: data_streams)
+                    run(streams, bundle, num_msgs, true);
+        }
+        finally {
+            server.shutdownNow();
+            service.stop();
+        }
+    }
+
+    protected void run(int streams, boolean bundle, int num, boolean print) throws Exception {
+        String cluster="bench-" + streams + (bundle? "-bundling" : "") + (print? "" : "-warmup");
+        GrpcClient[] clients=new GrpcClient[members];
+        Address[] addrs=new Address[members];
+        LongAdder received=new LongAdder();
+        CountDownLatch joined=new CountDownLatch(members);
+        for(int i=0; i < members; i++) {
+            addrs[i]=address("node-" + i);
+            clients[i]=new GrpcClient().setServerPort(port).setDataStreams(streams).setBundling(bundle)
+              .addMessageHandler(m -> received.increment())
+              .addBatchHandler(b -> received.add(b.getMessagesCount()))
+              .addViewHandler(v -> {
+                  if(v.getMemberCount() == members)
+                      joined.countDown();
+              })
+              .start();
+            clients[i].connect(cluster, addrs[i]);
+        }
+        try {
+            if(!joined.await(10, TimeUnit.SECONDS))
+                throw new IllegalStateException(String.format("%d members didn't join", joined.getCount()));
+            GrpcClient sender=clients[0];
+            for(int i=0; i < 100 && !sender.hasDataStream(); i++)
+                Thread.sleep(20);
+
+            ByteString payload=ByteString.copyFrom(new byte[payload_size]);
+            int per_thread=num / threads;
+            long expected=unicasts? (long)per_thread * threads : (long)per_thread * threads * members;
+            List<Thread> senders=new ArrayList<>(threads);
+            long start=System.nanoTime();
+            for(int t=0; t < threads; t++) {
+                final int id=t;
+                Thread thread=new Thread(() -> send(sender, cluster, addrs, payload, id, per_thread), "sender-" + t);
+                senders.add(thread);
+                thread.start();
+            }
+            for(Thread t: senders)
+                t.join();
+            long deadline=System.currentTimeMillis() + 60_000;
+            while(received.sum() < expected && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            long time=System.nanoTime() - start;
+            if(print) {
+                double secs=time / 1_000_000_000.0, msgs=received.sum() / secs;
+                System.out.printf("%d data stream(s)%s%s: %,.0f msgs/sec, %,.2f MB/sec " +
+                                    "(received %,d/%,d msgs in %,d ms)\n",
+                                  streams, bundle? " with bundling" : "", sender.hasDataStream()? "" : " (not used)", msgs,
+                                  msgs * payload_size / 1_000_000.0, received.sum(), expected,
+                                  TimeUnit.NANOSECONDS.toMillis(time));
+            }
+        }
+        finally {
+            for(int i=0; i < members; i++) {
+                clients[i].disconnect(cluster, addrs[i]);
+                clients[i].stop();
+            }
+        }
+    }
+
+    protected void send(GrpcClient client, String cluster, Address[] addrs, ByteString payload, int id, int num) {
+        Message.Builder builder=Message.newBuilder().setClusterName(cluster).setSender(addrs[0]).setPayload(payload);
+        for(int i=0; i < num; i++) {
+            if(unicasts)
+                builder.setDestination(addrs[1 + (id + i) % (addrs.length - 1)]);
+            client.send(builder.build());
+        }
+    }
+
+    protected static Address address(String name) {
+        java.util.UUID u=java.util.UUID.randomUUID();
+        return Address.newBuilder().setName(name)
+          .setUuid(UUID.newBuilder().setMostSig(u.getMostSignificantBits()).setLeastSig(u.getLeastSignificantBits()))
+          .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        DataStreamBenchmark b=new DataStreamBenchmark();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-port")) {
+                b.port=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-members")) {
+                b.members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-threads")) {
+                b.threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-num_msgs")) {
+                b.num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-payload_size")) {
+                b.payload_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-unicasts")) {
+                b.unicasts=true;
+                continue;
+            }
+            if(args[i].equals("-data_streams")) {
+                String[] list=args[++i].split(",");
+                b.data_streams=new int[list.length];
+                for(int j=0; j < list.length; j++)
+                    b.data_streams[j]=Integer.parseInt(list[j].trim());
+                continue;
+            }
+            if(args[i].equals("-bundling")) {
+                String[] list=args[++i].split(",");
+                b.bundling=new boolean[list.length];
+                for(int j=0; j < list.length; j++)
+                    b.bundling[j]=Boolean.parseBoolean(list[j].trim());
+                continue;
+            }
+            System.out.println("DataStreamBenchmark [-port <port>] [-members <num>] [-threads <sender threads>] " +
+                                 "[-num_msgs <num>] [-payload_size <bytes>] [-unicasts]\n" +
+                                 "[-data_streams <comma-separated list of the number of data streams, e.g. 1,2,4,8>]\n" +
+                                 "[-bundling <comma-separated list, e.g. false,true>]");
+            return;
+        }
+        if(b.unicasts && b.members < 2)
+            throw new IllegalArgumentException("unicasts require at least 2 members");
+        b.start();
+    }
+}
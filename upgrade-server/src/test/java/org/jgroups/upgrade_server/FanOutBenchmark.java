@@ -0,0 +1,142 @@
+package org.jgroups.upgrade_server;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Drainable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Function;
+
+/**
+ * Measures the cost of fanning out a multicast message and a view to all members: the response is either encoded
+ * separately for every member ({@link RelayResponse#of(Response)}), or encoded once and the same bytes are written
+ * to every member ({@link RelayResponse#encode(Response)}). Writing to a stream is simulated by draining the
+ * marshaller's stream into a byte counting output stream, which is what gRPC does when it frames a message.
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+public class FanOutBenchmark {
+    protected int members=200, payload_size=64 * 1024, iterations=200;
+
+    protected void start() throws IOException {
+        Address[] mbrs=new Address[members];
+        for(int i=0; i < members; i++) {
+            java.util.UUID u=java.util.UUID.randomUUID();
+            mbrs[i]=Address.newBuilder().setName("node-" + i)
+              .setUuid(UUID.newBuilder().setMostSig(u.getMostSignificantBits()).setLeastSig(u.getLeastSignificantBits()))
+              .build();
+        }
+        Message msg=Message.newBuilder().setClusterName("bench").setSender(mbrs[0])
+          .setPayload(ByteString.copyFrom(new byte[payload_size])).build();
+        View.Builder vb=View.newBuilder().setViewId(ViewId.newBuilder().setCreator(mbrs[0]).setId(1));
+        for(Address mbr: mbrs)
+            vb.addMember(mbr);
+        Response msg_rsp=Response.newBuilder().setMessage(msg).build();
+        Response view_rsp=Response.newBuilder().setView(vb).build();
+
+        System.out.printf("-- %d members, %d iterations\n", members, iterations);
+        run("message", msg_rsp);
+        run("view", view_rsp);
+    }
+
+    protected void run(String name, Response rsp) throws IOException {
+        // warmup
+        fanOut(rsp, RelayResponse::of, iterations);
+        fanOut(rsp, RelayResponse::encode, iterations);
+        Result before=fanOut(rsp, RelayResponse::of, iterations);
+        Result after=fanOut(rsp, RelayResponse::encode, iterations);
+        System.out.printf("%-8s (%,d bytes): per-member encoding: %s\n", name, rsp.getSerializedSize(), before);
+        System.out.printf("%-8s (%,d bytes): encode-once:         %s\n", name, rsp.getSerializedSize(), after);
+    }
+
+    protected Result fanOut(Response rsp, Function<Response,RelayResponse> f, int num) throws IOException {
+        CountingOutputStream out=new CountingOutputStream();
+        long encoded=0, start=System.nanoTime();
+        for(int i=0; i < num; i++) {
+            RelayResponse r=f.apply(rsp);
+            if(r.isRaw())
+                encoded+=r.size();
+            for(int j=0; j < members; j++) {
+                long prev=out.count;
+                try(InputStream in=RelayResponse.MARSHALLER.stream(r)) {
+                    drain(in, out);
+                }
+                if(!r.isRaw())
+                    encoded+=out.count - prev;
+            }
+        }
+        return new Result(num, encoded, out.count, System.nanoTime() - start);
+    }
+
+    protected static void drain(InputStream in, OutputStream out) throws IOException {
+        if(in instanceof Drainable) {
+            ((Drainable)in).drainTo(out);
+            return;
+        }
+        byte[] buf=new byte[8192];
+        int n;
+        while((n=in.read(buf)) > 0)
+            out.write(buf, 0, n);
+    }
+
+    public static void main(String[] args) throws IOException {
+        FanOutBenchmark b=new FanOutBenchmark();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-members")) {
+                b.members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-payload_size")) {
+                b.payload_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-iterations")) {
+                b.iterations=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("FanOutBenchmark [-members <num>] [-payload_size <bytes>] [-iterations <num>]");
+            return;
+        }
+        b.start();
+    }
+
+    protected static class Result {
+        protected final int  num;
+        protected final long encoded, written, time_ns;
+
+        protected Result(int num, long encoded, long written, long time_ns) {
+            this.num=num;
+            this.encoded=encoded;
+            this.written=written;
+            this.time_ns=time_ns;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("encoded/multicast: %,d bytes, written/multicast: %,d bytes, time/multicast: %,d us",
+                                 encoded / num, written / num, time_ns / num / 1000);
+        }
+    }
+
+    /** Copies the bytes into a scratch buffer (as gRPC copies them into its frames) and counts them */
+    protected static class CountingOutputStream extends OutputStream {
+        protected final byte[] scratch=new byte[16 * 1024];
+        protected long         count;
+
+        public void write(int b) {
+            scratch[0]=(byte)b;
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count+=len;
+            while(len > 0) {
+                int n=Math.min(len, scratch.length);
+                System.arraycopy(b, off, scratch, 0, n);
+                off+=n;
+                len-=n;
+            }
+        }
+    }
+}
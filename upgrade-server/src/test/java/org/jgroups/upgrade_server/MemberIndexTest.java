@@ -0,0 +1,221 @@
+package org.jgroups.upgrade_server;
+
+import io.grpc.stub.StreamObserver;
+import org.jgroups.common.Features;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests {@link MemberIndex}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class MemberIndexTest {
+    protected static final Executor NO_OP=r -> {};
+
+    public void testPutAndGet() {
+        MemberIndex idx=new MemberIndex();
+        Address a=addr("A", 1, 1), b=addr("B", 1, 2);
+        MemberSession sa=session(), sb=session();
+        assert idx.put(a, sa, true);
+        assert idx.put(b, sb, true);
+        assert idx.size() == 2;
+        assert idx.get(a) == sa && idx.get(b) == sb;
+        assert idx.first().equals(a);
+    }
+
+    public void testLookupIgnoresLogicalName() {
+        MemberIndex idx=new MemberIndex();
+        MemberSession s=session();
+        idx.put(addr("A", 5, 7), s, true);
+        assert idx.get(addr("", 5, 7)) == s;
+        assert idx.get(addr("other-name", 5, 7)) == s;
+        assert idx.get(addr("A", 5, 8)) == null;
+    }
+
+    public void testPlaceholderIsReplaced() {
+        MemberIndex idx=new MemberIndex();
+        Address a=addr("A", 1, 1);
+        MemberSession s=session();
+        assert idx.put(a, null, false);
+        assert idx.put(a, s, false); // a null session is replaced, like Map.putIfAbsent()
+        assert idx.get(a) == s;
+        assert !idx.put(a, session(), false);
+        assert idx.get(a) == s;
+        assert !idx.put(a, null, true);
+        assert idx.get(a) == null && idx.size() == 1;
+    }
+
+    public void testInsertionOrderAfterRemoveAndResize() {
+        MemberIndex idx=new MemberIndex(4);
+        List<Address> expected=new ArrayList<>();
+        for(int i=0; i < 100; i++) {
+            Address a=addr(String.valueOf(i), i, -i);
+            idx.put(a, session(), true);
+            expected.add(a);
+        }
+        for(int i=0; i < 100; i+=3)
+            assert idx.remove(expected.get(i)) != null;
+        expected.removeIf(a -> Integer.parseInt(a.getName()) % 3 == 0);
+        assert idx.size() == expected.size();
+        assert idx.addresses().equals(expected);
+        assert idx.first().equals(expected.get(0));
+
+        // re-adding a removed member appends it at the end
+        Address zero=addr("0", 0, 0);
+        idx.put(zero, session(), true);
+        expected.add(zero);
+        assert idx.addresses().equals(expected);
+    }
+
+    public void testChurn() {
+        MemberIndex idx=new MemberIndex(4);
+        Address a=addr("A", 42, 42);
+        for(int i=0; i < 10_000; i++) { // tombstones must not fill up the table
+            Address tmp=addr("tmp", i, i + 1);
+            idx.put(tmp, session(), true);
+            assert idx.remove(tmp) != null;
+        }
+        idx.put(a, session(), true);
+        assert idx.size() == 1 && idx.contains(a);
+    }
+
+    public void testRemoveIf() {
+        MemberIndex idx=new MemberIndex();
+        MemberSession s=session();
+        Address a=addr("A", 1, 1), b=addr("B", 2, 2), c=addr("C", 3, 3);
+        idx.put(a, s, true);
+        idx.put(b, session(), true);
+        idx.put(c, s, true);
+        assert idx.removeIf(x -> x == s);
+        assert idx.addresses().equals(Collections.singletonList(b));
+        assert !idx.removeIf(x -> x == s);
+    }
+
+    public void testCollectWithExclusions() {
+        MemberIndex idx=new MemberIndex();
+        Address a=addr("A", 1, 1), b=addr("B", 2, 2), c=addr("C", 3, 3), d=addr("D", 4, 4);
+        MemberSession sa=session(), sb=session(), sd=session();
+        idx.put(a, sa, true);
+        idx.put(b, sb, true);
+        idx.put(c, null, true); // not connected
+        idx.put(d, sd, true);
+        assert idx.collect(null, new ArrayList<>()).equals(Arrays.asList(sa, sb, sd));
+        assert idx.collect(Collections.singletonList(addr("", 2, 2)), new ArrayList<>()).equals(Arrays.asList(sa, sd));
+        assert idx.collect(Arrays.asList(a, d, addr("X", 9, 9)), new ArrayList<>()).equals(Collections.singletonList(sb));
+        assert idx.collect(Collections.emptyList(), new ArrayList<>()).equals(Arrays.asList(sa, sb, sd));
+        // the sender of a multicast which it delivered locally
+        assert idx.collect(null, sb, new ArrayList<>()).equals(Arrays.asList(sa, sd));
+        assert idx.collect(Collections.singletonList(a), sd, new ArrayList<>()).equals(Collections.singletonList(sb));
+    }
+
+    public void testIds() {
+        MemberIndex idx=new MemberIndex(4);
+        List<Address> mbrs=new ArrayList<>();
+        for(int i=1; i <= 50; i++) {
+            Address a=addr(String.valueOf(i), i, i);
+            idx.put(a, session(), true);
+            mbrs.add(a);
+        }
+        for(int i=0; i < 50; i+=2)
+            idx.remove(mbrs.get(i));
+        idx.put(mbrs.get(0), session(), true); // a rejoining member gets a new id
+        assert idx.id(mbrs.get(0)) == 51;
+        for(int i=1; i < 50; i+=2) { // ids are kept across removes and resizes
+            assert idx.id(mbrs.get(i)) == i + 1;
+            assert idx.getAddress(i + 1).equals(mbrs.get(i));
+            assert idx.getSession(i + 1) == idx.get(mbrs.get(i));
+        }
+        assert idx.getAddress(3) == null && idx.id(mbrs.get(2)) == 0;
+        List<Integer> ids=new ArrayList<>();
+        idx.forEachId((mbr, id) -> ids.add(id));
+        assert ids.size() == idx.size() && ids.get(ids.size() - 1) == 51;
+    }
+
+    public void testCollectForView() {
+        MemberIndex idx=new MemberIndex();
+        Address a=addr("A", 1, 1), b=addr("B", 2, 2), c=addr("C", 3, 3), d=addr("D", 4, 4);
+        MemberSession sa=session().features(Features.VIEW_DELTA), sb=session(), sc=session().features(Features.VIEW_DELTA);
+        idx.put(a, sa, true);
+        idx.put(b, sb, true);
+        idx.put(c, null, true); // not connected
+        List<MemberSession> delta=new ArrayList<>(), full=new ArrayList<>();
+
+        // no base view: everybody gets the full view
+        idx.collectForView(-1, 1, delta, full);
+        assert delta.isEmpty() && full.equals(Arrays.asList(sa, sb));
+
+        // only members which support deltas get one
+        delta.clear(); full.clear();
+        idx.collectForView(1, 2, delta, full);
+        assert delta.equals(Collections.singletonList(sa)) && full.equals(Collections.singletonList(sb));
+
+        // a member which connected after view 2 didn't receive the base view
+        idx.put(c, sc, false);
+        delta.clear(); full.clear();
+        idx.collectForView(2, 3, delta, full);
+        assert delta.equals(Collections.singletonList(sa)) && full.equals(Arrays.asList(sb, sc));
+
+        // a base view other than the last view sent to a member
+        idx.put(d, session().features(Features.VIEW_DELTA), true);
+        delta.clear(); full.clear();
+        idx.collectForView(2, 4, delta, full);
+        assert delta.isEmpty() && full.size() == 4;
+    }
+
+    /** Members which have not been sent the view announcing an id are collected separately (for expansion) */
+    public void testCollectUnknownIds() {
+        MemberIndex idx=new MemberIndex();
+        Address a=addr("A", 1, 1), b=addr("B", 2, 2);
+        MemberSession sa=session(), sb=session();
+        idx.put(a, sa, true);
+        List<MemberSession> list=new ArrayList<>(), unknown=new ArrayList<>(), delta=new ArrayList<>();
+        idx.collect(null, null, list, idx.id(a), unknown);
+        assert list.isEmpty() && unknown.equals(Collections.singletonList(sa)); // no view sent yet
+
+        idx.collectForView(-1, 1, delta, new ArrayList<>());
+        idx.viewSent(1, idx.id(a));
+        idx.put(b, sb, true);
+        list.clear(); unknown.clear();
+        idx.collect(null, null, list, idx.id(a), unknown);
+        assert list.equals(Collections.singletonList(sa)) && unknown.equals(Collections.singletonList(sb));
+        assert idx.maxId(a) == idx.id(a) && idx.maxId(idx.id(b)) == 0;
+
+        // view 2 (with B) was selected, but not yet sent
+        idx.collectForView(-1, 2, delta, new ArrayList<>());
+        list.clear(); unknown.clear();
+        idx.collect(null, null, list, idx.id(b), unknown);
+        assert list.isEmpty() && unknown.equals(Arrays.asList(sa, sb));
+
+        idx.viewSent(2, idx.id(b));
+        list.clear(); unknown.clear();
+        idx.collect(null, null, list, idx.id(b), unknown);
+        assert list.equals(Arrays.asList(sa, sb)) && unknown.isEmpty();
+    }
+
+    public void testAddressWithoutUUID() {
+        MemberIndex idx=new MemberIndex();
+        MemberSession s=session();
+        idx.put(Address.newBuilder().setName("A").build(), s, true);
+        assert idx.get(Address.newBuilder().setName("A").build()) == s;
+        assert idx.get(Address.newBuilder().setName("B").build()) == null;
+    }
+
+    protected static Address addr(String name, long most, long least) {
+        return Address.newBuilder().setName(name).setUuid(UUID.newBuilder().setMostSig(most).setLeastSig(least)).build();
+    }
+
+    protected static MemberSession session() {
+        return new MemberSession(new StreamObserver<RelayResponse>() {
+            public void onNext(RelayResponse value) {}
+            public void onError(Throwable t) {}
+            public void onCompleted() {}
+        }, 16, NO_OP);
+    }
+}
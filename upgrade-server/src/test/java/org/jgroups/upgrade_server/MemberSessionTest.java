@@ -0,0 +1,182 @@
+package org.jgroups.upgrade_server;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link MemberSession}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class MemberSessionTest {
+    protected static final Executor SYNC=Runnable::run; // drain() runs on the caller's thread
+
+    /** Responses are written in order by a single writer, which is only submitted when the queue was empty */
+    public void testSingleWriter() {
+        Queue<Runnable> writers=new ConcurrentLinkedQueue<>();
+        Call call=new Call(true);
+        MemberSession s=new MemberSession(call, 16, writers::add);
+        List<RelayResponse> sent=new ArrayList<>();
+        for(int i=0; i < 5; i++) {
+            sent.add(rsp(i));
+            assert s.send(sent.get(i));
+        }
+        assert writers.size() == 1 && s.queueSize() == 5 && call.received.isEmpty();
+        writers.poll().run();
+        assert s.queueSize() == 0 && call.received.equals(sent);
+        s.send(rsp(5));
+        assert writers.size() == 1; // the queue was empty, so a new writer is submitted
+    }
+
+    /** A sender blocks when the receiver's queue is full, until the writer has made space */
+    public void testSenderBlocksOnFullQueue() throws InterruptedException {
+        Queue<Runnable> writers=new ConcurrentLinkedQueue<>();
+        Call call=new Call(true);
+        MemberSession s=new MemberSession(call, 2, writers::add);
+        s.send(rsp(1));
+        s.send(rsp(2));
+        Thread sender=new Thread(() -> s.send(rsp(3)));
+        sender.start();
+        sender.join(500);
+        assert sender.isAlive() && s.queueSize() == 2;
+        writers.poll().run();
+        sender.join(TimeUnit.SECONDS.toMillis(5));
+        assert !sender.isAlive();
+        for(Runnable w; (w=writers.poll()) != null;) // the writer may have returned before the 3rd response was added
+            w.run();
+        assert call.received.size() == 3 && s.queueSize() == 0;
+    }
+
+    /** Closing completes the stream once the queued responses have been written; later responses are rejected */
+    public void testClose() {
+        Queue<Runnable> writers=new ConcurrentLinkedQueue<>();
+        Call call=new Call(true);
+        MemberSession s=new MemberSession(call, 16, writers::add);
+        s.send(rsp(1));
+        s.send(rsp(2));
+        s.close();
+        assert s.isClosed() && !s.send(rsp(3));
+        assert !call.completed;
+        writers.poll().run();
+        assert call.received.size() == 2 && call.completed;
+    }
+
+    /** Closing a session whose queue is full (e.g. a slow receiver which is removed) doesn't block */
+    @Test(timeOut=10_000)
+    public void testCloseWithFullQueue() {
+        Queue<Runnable> writers=new ConcurrentLinkedQueue<>();
+        Call call=new Call(true);
+        MemberSession s=new MemberSession(call, 2, writers::add);
+        s.send(rsp(1));
+        s.send(rsp(2));
+        s.close();
+        assert s.isClosed() && !call.completed && writers.size() == 1;
+        writers.poll().run();
+        assert call.received.size() == 2 && call.completed;
+    }
+
+    /** A congested receiver blocks the senders relaying to it, and resumes them once its queue has been drained */
+    public void testBackpressure() {
+        Call rcv_call=new Call(false), snd_call=new Call(true);
+        MemberSession receiver=new MemberSession(rcv_call, 16, SYNC).flowControl(100),
+          sender=new MemberSession(snd_call, 16, SYNC).flowControl(100);
+        assert snd_call.requested == 1;
+
+        RelayResponse r=rsp(60);
+        receiver.send(r);
+        assert !receiver.congested();
+        sender.requestNext(receiver); // not congested: the next message is requested immediately
+        assert snd_call.requested == 2;
+
+        receiver.send(rsp(60));
+        assert receiver.congested() && receiver.queuedBytes() == 2 * r.size();
+        sender.requestNext(receiver); // blocked until the receiver has drained its queue
+        assert snd_call.requested == 2;
+        assert rcv_call.received.isEmpty();
+
+        rcv_call.ready();
+        assert rcv_call.received.size() == 2;
+        assert !receiver.congested() && receiver.queuedBytes() == 0;
+        assert snd_call.requested == 3;
+        sender.requestNext(receiver);
+        assert snd_call.requested == 4;
+    }
+
+    /** A sender blocked on multiple receivers is resumed by each of them */
+    public void testBackpressureMultipleSenders() {
+        Call rcv_call=new Call(false), c1=new Call(true), c2=new Call(true);
+        MemberSession receiver=new MemberSession(rcv_call, 16, SYNC).flowControl(10),
+          s1=new MemberSession(c1, 16, SYNC).flowControl(10), s2=new MemberSession(c2, 16, SYNC).flowControl(10);
+        receiver.send(rsp(20));
+        s1.requestNext(receiver);
+        s2.requestNext(receiver);
+        assert c1.requested == 1 && c2.requested == 1;
+        rcv_call.ready();
+        assert c1.requested == 2 && c2.requested == 2;
+    }
+
+    /** After a failed write, the queued responses are discarded and blocked senders are resumed */
+    public void testFailedWrite() {
+        Call rcv_call=new Call(false), snd_call=new Call(true);
+        List<Throwable> errors=new ArrayList<>();
+        MemberSession receiver=new MemberSession(rcv_call, 16, SYNC).flowControl(10)
+          .errorHandler((s, t) -> errors.add(t)),
+          sender=new MemberSession(snd_call, 16, SYNC).flowControl(10);
+        for(int i=0; i < 3; i++)
+            receiver.send(rsp(20));
+        sender.requestNext(receiver);
+        assert snd_call.requested == 1;
+        rcv_call.fail=true;
+        rcv_call.ready();
+        assert errors.size() == 1 && receiver.isClosed();
+        assert receiver.queueSize() == 0 && receiver.queuedBytes() == 0;
+        assert snd_call.requested == 2;
+        assert !receiver.send(rsp(20));
+    }
+
+    /** A relayed message of the given size */
+    protected static RelayResponse rsp(int size) {
+        return RelayResponse.raw(new byte[size]);
+    }
+
+    protected static class Call extends ServerCallStreamObserver<RelayResponse> {
+        protected boolean                   is_ready, completed, fail;
+        protected Runnable                  on_ready;
+        protected int                       requested;
+        protected final List<RelayResponse> received=new ArrayList<>();
+
+        protected Call(boolean ready) {is_ready=ready;}
+
+        /** Makes the stream writable and notifies the session, like gRPC does */
+        protected void ready() {
+            is_ready=true;
+            on_ready.run();
+        }
+
+        public boolean isReady()                             {return is_ready;}
+        public void    setOnReadyHandler(Runnable r)         {on_ready=r;}
+        public void    request(int num)                      {requested+=num;}
+        public void    disableAutoRequest()                  {}
+        public void    disableAutoInboundFlowControl()       {}
+        public boolean isCancelled()                         {return false;}
+        public void    setOnCancelHandler(Runnable r)        {}
+        public void    setCompression(String compression)    {}
+        public void    setMessageCompression(boolean enable) {}
+        public void    onError(Throwable t)                  {}
+        public void    onCompleted()                         {completed=true;}
+
+        public void onNext(RelayResponse rsp) {
+            if(fail)
+                throw new IllegalStateException("stream closed");
+            received.add(rsp);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.jgroups.upgrade_server;
+
+import com.google.protobuf.ByteString;
+import org.jgroups.common.Compressor;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+
+/**
+ * Tests {@link RelayRequest}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class RelayRequestTest {
+    protected static final Address A=Address.newBuilder().setName("A")
+      .setUuid(UUID.newBuilder().setMostSig(1).setLeastSig(1)).build();
+    protected static final Address B=Address.newBuilder().setName("B")
+      .setUuid(UUID.newBuilder().setMostSig(2).setLeastSig(2)).build();
+
+    public void testFullForm() throws Exception {
+        Message msg=Message.newBuilder().setClusterName("cl").setDestination(B).setSender(A).build();
+        RelayRequest req=RelayRequest.parse(Request.newBuilder().setMessage(msg).build().toByteArray());
+        assert !req.isCompact();
+        assert req.cluster().equals("cl") && req.destination().equals(B);
+    }
+
+    public void testExpandCompactForm() throws Exception {
+        Message msg=Message.newBuilder().setClusterId(3).setDestId(2).setSenderId(1).setFlags(4)
+          .setPayload(ByteString.copyFromUtf8("hello")).build();
+        RelayRequest req=RelayRequest.parse(Request.newBuilder().setMessage(msg).build().toByteArray());
+        assert req.isCompact();
+        assert req.clusterId() == 3 && req.destId() == 2 && req.senderId() == 1;
+        assert req.cluster().isEmpty() && req.destination() == null;
+
+        Message expanded=Response.parseFrom(req.expand("cl", B, A).data()).getMessage();
+        assert expanded.getClusterName().equals("cl");
+        assert expanded.getDestination().equals(B) && expanded.getSender().equals(A);
+        assert expanded.getFlags() == 4 && expanded.getPayload().toStringUtf8().equals("hello");
+        assert expanded.getSenderId() == 1; // ids are kept (skipped by old clients)
+    }
+
+    /** OOB (1) and INTERNAL (512) messages are relayed on the priority lane, also when part of a batch */
+    public void testPriority() throws Exception {
+        MessageBatch batch=MessageBatch.newBuilder()
+          .addMessages(Message.newBuilder().setClusterName("cl").setFlags(4))
+          .addMessages(Message.newBuilder().setClusterName("cl").setFlags(1 | 4))
+          .addMessages(Message.newBuilder().setClusterName("cl").setFlags(512)).build();
+        RelayRequest req=RelayRequest.parse(Request.newBuilder().setBatch(batch).build().toByteArray());
+        assert req.isBatch() && req.batch().size() == 3;
+        assert !req.batch().get(0).isPriority() && req.batch().get(0).flags() == 4;
+        assert req.batch().get(1).isPriority() && req.batch().get(2).isPriority();
+    }
+
+    /** The markers of multicasts which the sender delivered locally or sent to its sub-cluster are not JGroups flags */
+    public void testLocalMarkers() throws Exception {
+        int flags=4 | org.jgroups.common.Utils.SUB_CLUSTER;
+        Message msg=Message.newBuilder().setClusterName("cl").setFlags(flags).build();
+        RelayRequest req=RelayRequest.parse(Request.newBuilder().setMessage(msg).build().toByteArray());
+        assert req.isSubCluster() && !req.isLocalLoopback() && !req.isPriority();
+        assert Response.parseFrom(req.toResponse().data()).getMessage().getFlags() == flags;
+    }
+
+    /** A compressed message in compact form is decompressed and expanded for receivers which support neither */
+    public void testDecompress() throws Exception {
+        Compressor c=new Compressor().threshold(1);
+        ByteString payload=ByteString.copyFromUtf8(String.join(",", Collections.nCopies(100, "hello")));
+        Message msg=c.compress(Message.newBuilder().setClusterId(3).setSenderId(1).setPayload(payload).build());
+        RelayRequest req=RelayRequest.parse(Request.newBuilder().setMessage(msg).build().toByteArray());
+        assert req.isCompressed() && req.isCompact();
+
+        RelayResponse rsp=req.decompress(c, "cl", null, A);
+        assert rsp.isMessage();
+        Message decompressed=Response.parseFrom(rsp.data()).getMessage();
+        assert decompressed.getPayload().equals(payload) && decompressed.getUncompressedSize() == 0;
+        assert decompressed.getClusterName().equals("cl") && decompressed.getSender().equals(A);
+    }
+}
@@ -0,0 +1,46 @@
+package org.jgroups.upgrade_server;
+
+import com.google.protobuf.ByteString;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link RelayResponse}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class RelayResponseTest {
+
+    public void testBatch() throws Exception {
+        testBatch(3, 10);
+    }
+
+    /** The length of the batch needs more than 1 byte (varint) */
+    public void testLargeBatch() throws Exception {
+        testBatch(50, 1000);
+    }
+
+    protected static void testBatch(int num, int payload_size) throws Exception {
+        List<Message> msgs=new ArrayList<>(num);
+        List<RelayResponse> batch=new ArrayList<>(num);
+        int size=0;
+        for(int i=0; i < num; i++) {
+            Message msg=Message.newBuilder().setClusterName("cl")
+              .setPayload(ByteString.copyFrom(new byte[payload_size + i])).build();
+            byte[] buf=Response.newBuilder().setMessage(msg).build().toByteArray();
+            RelayResponse r=RelayResponse.message(buf, 0, buf.length);
+            assert r.isMessage();
+            msgs.add(msg);
+            batch.add(r);
+            size+=r.size();
+        }
+        RelayResponse rsp=RelayResponse.batch(batch, size);
+        assert !rsp.isMessage();
+        Response parsed=Response.parseFrom(rsp.data());
+        assert parsed.hasBatch();
+        assert parsed.getBatch().getMessagesList().equals(msgs);
+    }
+}
@@ -0,0 +1,76 @@
+package org.jgroups.upgrade_server;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests {@link UpgradeService}
+ * @author Bela Ban
+ * @since  1.1.1
+ */
+@Test
+public class UpgradeServiceTest {
+    protected static final Address A=addr("A", 1), B=addr("B", 2), C=addr("C", 3), D=addr("D", 4), E=addr("E", 5),
+      F=addr("F", 6), G=addr("G", 7), H=addr("H", 8);
+
+    public void testDeltaWithJoinedAndLeftMembers() {
+        View prev=view(1, A, B, C, D, E, F, G), next=view(2, A, C, D, E, F, G, H);
+        ViewDelta delta=UpgradeService.createDelta(prev, next);
+        assert delta != null;
+        assert delta.getBaseId() == 1 && delta.getViewId().equals(next.getViewId());
+        assert delta.getLeftList().equals(Collections.singletonList(B));
+        assert delta.getJoinedList().equals(Collections.singletonList(H));
+    }
+
+    public void testDeltaIgnoresLogicalNames() {
+        View prev=view(1, A, B, C, D, E, F, G), next=view(2, addr("", 1), B, C, D, E, F, G, H);
+        ViewDelta delta=UpgradeService.createDelta(prev, next);
+        assert delta != null && delta.getLeftCount() == 0;
+        assert delta.getJoinedList().equals(Collections.singletonList(H));
+    }
+
+    /** The remaining members have to keep their order, and the joined members have to follow them */
+    public void testFullViewIfOrderChanges() {
+        View prev=view(1, A, B, C, D, E, F, G);
+        assert UpgradeService.createDelta(prev, view(2, B, A, C, D, E, F, G)) == null;
+        assert UpgradeService.createDelta(prev, view(2, H, A, B, C, D, E, F, G)) == null;
+    }
+
+    /** A delta which is not smaller than the full view is not sent */
+    public void testFullViewIfDeltaIsNotSmaller() {
+        assert UpgradeService.createDelta(view(1, A), view(2, B, C)) == null;
+    }
+
+    /** The view returned by GetView includes the members added by a RegisterView after the view was created */
+    public void testGetViewAfterRegisterView() throws Exception {
+        UpgradeService service=new UpgradeService();
+        try {
+            service.handleRegisterView(register(A, view(1, A, B)), MemberIndexTest.session());
+            assert service.getOrCreate("demo").getView().getMemberList().equals(Arrays.asList(A, B));
+            service.handleRegisterView(register(C, view(2, A, B, C)), MemberIndexTest.session());
+            View v=service.getOrCreate("demo").getView();
+            assert v.getMemberList().equals(Arrays.asList(A, B, C));
+            assert v.getViewId().getId() > 2;
+            GetViewResponse rsp=Response.parseFrom(service.getOrCreate("demo").getViewResponse().data()).getGetViewRsp();
+            assert rsp.getView().equals(v);
+        }
+        finally {
+            service.stop();
+        }
+    }
+
+    protected static RegisterView register(Address local_addr, View local_view) {
+        return RegisterView.newBuilder().setClusterName("demo").setView(local_view).setLocalAddr(local_addr).build();
+    }
+
+    protected static View view(long id, Address... mbrs) {
+        return View.newBuilder().setViewId(ViewId.newBuilder().setId(id).setCreator(mbrs[0]))
+          .addAllMember(Arrays.asList(mbrs)).build();
+    }
+
+    protected static Address addr(String name, long id) {
+        return Address.newBuilder().setName(name).setUuid(UUID.newBuilder().setMostSig(id).setLeastSig(id)).build();
+    }
+}